@@ -0,0 +1,246 @@
+package it.cloud;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.cloud.utils.AsyncExecutor;
+import it.cloud.utils.CloudException;
+import it.cloud.utils.LineConsumer;
+import it.cloud.utils.Utilities;
+
+/**
+ * Runs the same command on many instances in parallel, at most
+ * {@link #getConcurrency()} at the same time, on the shared
+ * {@link AsyncExecutor}. What happens when some of them fail depends on the
+ * policy:
+ * <ul>
+ * <li>FAIL_FAST stops starting the command on new instances at the first
+ * failure, and fails as soon as the ones already started are done;</li>
+ * <li>BEST_EFFORT runs the command everywhere and never fails, the errors are
+ * in the results;</li>
+ * <li>QUORUM runs the command everywhere, but fails (stopping early) as soon
+ * as it's clear that less than {@link #getQuorum()} instances can succeed.</li>
+ * </ul>
+ * A command fails on an instance if it throws an exception or if its exit
+ * status is known and isn't 0.
+ */
+public class Broadcast {
+
+	protected static final Logger logger = LoggerFactory.getLogger(Broadcast.class);
+
+	public static enum Policy {
+		FAIL_FAST, BEST_EFFORT, QUORUM
+	}
+
+	private final Policy policy;
+	private final int concurrency;
+	private final int quorum;
+
+	/**
+	 * @param quorum
+	 *            how many instances must succeed in the QUORUM policy, if 0 or
+	 *            less the majority of them.
+	 */
+	public Broadcast(Policy policy, int concurrency, int quorum) {
+		if (concurrency <= 0)
+			throw new IllegalArgumentException("The concurrency should be at least 1.");
+		this.policy = policy;
+		this.concurrency = concurrency;
+		this.quorum = quorum;
+	}
+
+	public Broadcast(Policy policy, int concurrency) {
+		this(policy, concurrency, 0);
+	}
+
+	public Broadcast(Policy policy) {
+		this(policy, AsyncExecutor.getMaxThreads(), 0);
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	public int getQuorum() {
+		return quorum;
+	}
+
+	private int getQuorum(int instances) {
+		if (quorum <= 0)
+			return instances / 2 + 1;
+		return Math.min(quorum, instances);
+	}
+
+	public static class Result {
+		public final Instance instance;
+		public final List<String> output;
+		public final Integer exitStatus;
+		public final long duration;
+		public final Exception error;
+
+		private Result(Instance instance, List<String> output, Integer exitStatus, long duration, Exception error) {
+			this.instance = instance;
+			this.output = output;
+			this.exitStatus = exitStatus;
+			this.duration = duration;
+			this.error = error;
+		}
+
+		public boolean isSuccessful() {
+			return error == null && (exitStatus == null || exitStatus == 0);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %s in %d ms", instance.getIp(),
+					error != null ? error.toString() : "exit-status " + exitStatus, duration);
+		}
+	}
+
+	/**
+	 * Thrown when the policy isn't satisfied, it has the results of all the
+	 * instances on which the command was run.
+	 */
+	public static class Failure extends CloudException {
+		private static final long serialVersionUID = 1L;
+
+		// the results (and their instances) aren't sent along if the
+		// exception is serialized
+		private final transient List<Result> results;
+
+		private Failure(String message, List<Result> results, Exception cause) {
+			super(message, cause);
+			this.results = results;
+		}
+
+		public List<Result> getResults() {
+			return results;
+		}
+	}
+
+	/**
+	 * @return the results, in the same order of the instances; the instances
+	 *         on which the command wasn't started (because the broadcast was
+	 *         stopped) aren't there.
+	 */
+	public List<Result> exec(List<? extends Instance> instances, final String command) throws Exception {
+		long init = System.currentTimeMillis();
+
+		Run run = new Run(instances, command);
+		List<Result> results = run.await();
+
+		int successful = 0;
+		Exception firstError = null;
+		for (Result r : results) {
+			if (r.isSuccessful())
+				successful++;
+			else if (firstError == null && r.error != null)
+				firstError = r.error;
+		}
+
+		long duration = System.currentTimeMillis() - init;
+		logger.debug("Executed `{}` on {} of {} instances ({} successful) in {}", command, results.size(),
+				instances.size(), successful, Utilities.durationToString(duration));
+
+		switch (policy) {
+		case FAIL_FAST:
+			if (successful < results.size() || results.size() < instances.size())
+				throw new Failure(String.format("`%s` failed on %d of %d instances.", command,
+						results.size() - successful, instances.size()), results, firstError);
+			break;
+		case QUORUM:
+			int needed = getQuorum(instances.size());
+			if (successful < needed)
+				throw new Failure(String.format("`%s` succeeded on %d instances, %d were needed.", command, successful,
+						needed), results, firstError);
+			break;
+		default:
+			break;
+		}
+
+		return results;
+	}
+
+	private class Run {
+		private final List<? extends Instance> instances;
+		private final String command;
+		private final Result[] results;
+		private int next = 0;
+		private int running = 0;
+		private int failed = 0;
+		private boolean stopped = false;
+
+		private Run(List<? extends Instance> instances, String command) {
+			this.instances = instances;
+			this.command = command;
+			this.results = new Result[instances.size()];
+		}
+
+		private synchronized List<Result> await() throws InterruptedException {
+			boolean started = true;
+			while (running < concurrency && started)
+				started = startNext();
+			while (running > 0)
+				wait();
+
+			List<Result> res = new ArrayList<Result>();
+			for (Result r : results)
+				if (r != null)
+					res.add(r);
+			return Collections.unmodifiableList(res);
+		}
+
+		// must be called holding the lock
+		private boolean startNext() {
+			if (stopped || next >= instances.size())
+				return false;
+
+			final int i = next++;
+			final Instance instance = instances.get(i);
+			running++;
+
+			AsyncExecutor.supply(() -> {
+				LineConsumer.Collector output = new LineConsumer.Collector();
+				long start = System.currentTimeMillis();
+				Integer exitStatus = null;
+				Exception error = null;
+				try {
+					exitStatus = instance.exec(command, output, output);
+				} catch (Exception e) {
+					error = e;
+				} catch (Throwable t) {
+					error = new CloudException(t);
+				}
+				done(i, new Result(instance, output.getLines(), exitStatus, System.currentTimeMillis() - start,
+						error));
+				return null;
+			});
+			return true;
+		}
+
+		private synchronized void done(int i, Result result) {
+			results[i] = result;
+			running--;
+
+			if (!result.isSuccessful()) {
+				failed++;
+				logger.debug("`{}` failed on {}", command, result);
+				if (policy == Policy.FAIL_FAST
+						|| (policy == Policy.QUORUM && instances.size() - failed < getQuorum(instances.size())))
+					stopped = true;
+			}
+
+			startNext();
+			notifyAll();
+		}
+	}
+
+}
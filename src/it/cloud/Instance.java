@@ -2,13 +2,16 @@ package it.cloud;
 
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import it.cloud.VirtualMachine;
 import it.cloud.amazon.Configuration;
+import it.cloud.utils.LineConsumer;
 import it.cloud.utils.Ssh;
 
 public abstract class Instance {
@@ -52,6 +55,14 @@ public abstract class Instance {
 		return Ssh.exec(this, cmd);
 	}
 
+	public Integer exec(String cmd, LineConsumer stdout, LineConsumer stderr) throws Exception {
+		return Ssh.exec(this, cmd, stdout, stderr);
+	}
+
+	public List<Ssh.BatchResult> execBatch(List<String> cmds) throws Exception {
+		return Ssh.execBatch(this, cmds);
+	}
+
 	public void receiveFile(String lfile, String rfile) throws Exception {
 		Ssh.receiveFile(this, lfile, rfile);
 	}
@@ -60,6 +71,22 @@ public abstract class Instance {
 		Ssh.sendFile(this, lfile, rfile);
 	}
 	
+	public CompletableFuture<List<String>> execAsync(String cmd) {
+		return Ssh.execAsync(this, cmd);
+	}
+
+	public CompletableFuture<Integer> execAsync(String cmd, LineConsumer stdout, LineConsumer stderr) {
+		return Ssh.execAsync(this, cmd, stdout, stderr);
+	}
+
+	public CompletableFuture<Void> receiveFileAsync(String lfile, String rfile) {
+		return Ssh.receiveFileAsync(this, lfile, rfile);
+	}
+
+	public CompletableFuture<Void> sendFileAsync(String lfile, String rfile) {
+		return Ssh.sendFileAsync(this, lfile, rfile);
+	}
+	
 	public String getIp() {
 		return ip;
 	}
@@ -102,23 +129,19 @@ public abstract class Instance {
 	
 	public static final long TIMEOUT = 60000;
 	
+	/**
+	 * Waits for the instance to be running (initialized is enough) and then
+	 * for SSH to be usable on it, for at most {@link #TIMEOUT} ms.
+	 */
 	public boolean waitUntilSshAvailable() {
-		waitUntilRunning(false);
+		if (!waitUntilRunning(true))
+			return false;
 		
-		long init = System.currentTimeMillis();
-		long end = init;
-		boolean done = false;
-		while (!done && ((end - init) <= TIMEOUT)) {
-			try {
-				exec("echo foo > /dev/null");
-				done = true;
-			} catch (Exception e) {
-				try {
-					Thread.sleep(1000);
-				} catch (Exception e1) { }
-			}
-			end = System.currentTimeMillis();
+		try {
+			return new ReadinessProbe().await(Collections.singletonList(this), TIMEOUT).isEmpty();
+		} catch (Exception e) {
+			logger.error("Error while waiting for SSH.", e);
+			return false;
 		}
-		return done;
 	}
 }
@@ -0,0 +1,237 @@
+package it.cloud;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.cloud.utils.AsyncExecutor;
+import it.cloud.utils.LineConsumer;
+import it.cloud.utils.Ssh;
+import it.cloud.utils.Utilities;
+
+/**
+ * Waits for SSH to be usable on many instances at the same time, going
+ * through three stages for each of them:
+ * <ol>
+ * <li>a non-blocking TCP connection to the SSH port;</li>
+ * <li>the banner of the SSH server ("SSH-2.0-...");</li>
+ * <li>a login running a no-op command (so that the connection is also put in
+ * the pool, ready to be used).</li>
+ * </ol>
+ * The first two stages are done for all the instances by a single thread with
+ * a selector, the logins on the {@link AsyncExecutor}. An instance that fails
+ * a stage is tried again after an interval that doubles at each failure (up to
+ * a maximum) and goes back to the minimum as soon as it gets further than
+ * before, so the machines still booting aren't hammered and the ones about to
+ * be ready are caught quickly. A login taking longer than the auth timeout is
+ * interrupted and counts as a failure, and the logins still going on when the
+ * probe returns are interrupted too.
+ */
+public class ReadinessProbe {
+
+	protected static final Logger logger = LoggerFactory.getLogger(ReadinessProbe.class);
+
+	public static enum Stage {
+		TCP, BANNER, AUTH, READY
+	}
+
+	public static final long DEFAULT_MIN_INTERVAL = 500;
+	public static final long DEFAULT_MAX_INTERVAL = 10000;
+	public static final long DEFAULT_CONNECT_TIMEOUT = 2000;
+	public static final long DEFAULT_AUTH_TIMEOUT = 30000;
+
+	private static final long SELECT_TIMEOUT = 100;
+
+	private final long minInterval;
+	private final long maxInterval;
+	private final long connectTimeout;
+	private final long authTimeout;
+
+	public ReadinessProbe(long minInterval, long maxInterval, long connectTimeout, long authTimeout) {
+		this.minInterval = minInterval;
+		this.maxInterval = maxInterval;
+		this.connectTimeout = connectTimeout;
+		this.authTimeout = authTimeout;
+	}
+
+	public ReadinessProbe(long minInterval, long maxInterval, long connectTimeout) {
+		this(minInterval, maxInterval, connectTimeout, DEFAULT_AUTH_TIMEOUT);
+	}
+
+	public ReadinessProbe() {
+		this(DEFAULT_MIN_INTERVAL, DEFAULT_MAX_INTERVAL, DEFAULT_CONNECT_TIMEOUT, DEFAULT_AUTH_TIMEOUT);
+	}
+
+	private class Probe {
+		private final Instance instance;
+		private Stage stage = Stage.TCP;
+		private Stage best = Stage.TCP;
+		private long next = 0;
+		private long interval = minInterval;
+		private long deadline = 0;
+		private SocketChannel channel = null;
+		private final ByteBuffer banner = ByteBuffer.allocate(256);
+		private CompletableFuture<Integer> auth = null;
+
+		private Probe(Instance instance) {
+			this.instance = instance;
+		}
+
+		private void advance(Stage stage, long now) {
+			this.stage = stage;
+			if (stage.ordinal() > best.ordinal()) {
+				best = stage;
+				interval = minInterval;
+			}
+			deadline = now + connectTimeout;
+		}
+
+		private void failed(long now) {
+			close();
+			stage = Stage.TCP;
+			auth = null;
+			next = now + interval;
+			interval = Math.min(interval * 2, maxInterval);
+		}
+
+		private void close() {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+				}
+				channel = null;
+			}
+			if (auth != null)
+				auth.cancel(true);
+		}
+	}
+
+	/**
+	 * Probes all the instances until they're all ready or the timeout (in ms)
+	 * expires.
+	 *
+	 * @return the instances that aren't ready, empty if all of them are.
+	 */
+	public List<Instance> await(List<? extends Instance> instances, long timeout) throws IOException {
+		long init = System.currentTimeMillis();
+		long end = init + timeout;
+
+		List<Probe> pending = new ArrayList<Probe>();
+		for (Instance i : instances)
+			pending.add(new Probe(i));
+
+		try (Selector selector = Selector.open()) {
+			while (pending.size() > 0 && System.currentTimeMillis() < end) {
+				long now = System.currentTimeMillis();
+
+				for (Probe p : new ArrayList<Probe>(pending)) {
+					if (p.auth != null) {
+						if (!p.auth.isDone())
+							continue;
+						if (p.auth.isCompletedExceptionally()) {
+							logger.trace("Login on {} not possible yet.", p.instance.getIp());
+							p.failed(now);
+						} else {
+							p.stage = Stage.READY;
+							pending.remove(p);
+							logger.debug("SSH ready on {} after {}", p.instance.getIp(),
+									Utilities.durationToString(now - init));
+						}
+					} else if (p.channel == null && now >= p.next) {
+						connect(p, selector, now);
+					} else if (p.channel != null && now > p.deadline) {
+						logger.trace("Timeout in the {} stage on {}.", p.stage, p.instance.getIp());
+						p.failed(now);
+					}
+				}
+
+				selector.select(SELECT_TIMEOUT);
+				now = System.currentTimeMillis();
+				for (SelectionKey key : selector.selectedKeys()) {
+					Probe p = (Probe) key.attachment();
+					if (!key.isValid())
+						continue;
+					try {
+						if (key.isConnectable() && p.channel.finishConnect()) {
+							p.advance(Stage.BANNER, now);
+							key.interestOps(SelectionKey.OP_READ);
+						} else if (key.isReadable()) {
+							readBanner(p, now);
+						}
+					} catch (IOException e) {
+						logger.trace("Error in the {} stage on {}: {}", p.stage, p.instance.getIp(), e.getMessage());
+						p.failed(now);
+					}
+				}
+				selector.selectedKeys().clear();
+			}
+		} finally {
+			for (Probe p : pending)
+				p.close();
+		}
+
+		List<Instance> res = new ArrayList<Instance>();
+		for (Probe p : pending) {
+			logger.warn("SSH not ready on {} after {}, it got to the {} stage.", p.instance.getIp(),
+					Utilities.durationToString(timeout), p.best);
+			res.add(p.instance);
+		}
+		return res;
+	}
+
+	private void connect(Probe p, Selector selector, long now) {
+		String ip = p.instance.getIp();
+		if (ip == null) {
+			p.failed(now);
+			return;
+		}
+		try {
+			p.channel = SocketChannel.open();
+			p.channel.configureBlocking(false);
+			p.banner.clear();
+			p.advance(Stage.TCP, now);
+			if (p.channel.connect(new InetSocketAddress(Ssh.getHost(ip), Ssh.getPort(ip)))) {
+				p.advance(Stage.BANNER, now);
+				p.channel.register(selector, SelectionKey.OP_READ, p);
+			} else {
+				p.channel.register(selector, SelectionKey.OP_CONNECT, p);
+			}
+		} catch (IOException e) {
+			logger.trace("Error while connecting to {}: {}", ip, e.getMessage());
+			p.failed(now);
+		}
+	}
+
+	private void readBanner(Probe p, long now) throws IOException {
+		if (p.channel.read(p.banner) < 0)
+			throw new IOException("Connection closed before the banner.");
+
+		String read = new String(p.banner.array(), 0, p.banner.position(), StandardCharsets.US_ASCII);
+		if (read.contains("SSH-") && read.indexOf('\n', read.indexOf("SSH-")) > 0) {
+			p.close();
+			p.advance(Stage.AUTH, now);
+			final Instance instance = p.instance;
+			// the task is interrupted if it times out
+			p.auth = AsyncExecutor.supply(() -> Ssh.getProvider()
+					.newInstance(instance.getIp(), instance.getSshUser(), instance.getSshPassword(),
+							instance.getKey().toString())
+					.exec("true", LineConsumer.DISCARD, LineConsumer.DISCARD))
+					.orTimeout(authTimeout, TimeUnit.MILLISECONDS);
+		} else if (!p.banner.hasRemaining()) {
+			throw new IOException("No SSH banner found.");
+		}
+	}
+
+}
@@ -2,12 +2,15 @@ package it.cloud;
 
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import it.cloud.utils.AsyncExecutor;
 import it.cloud.utils.CloudException;
 import it.cloud.utils.Ssh;
 
@@ -116,6 +119,23 @@ public abstract class VirtualMachine {
 		return true;
 	}
 	
+	/**
+	 * Waits for all the instances to be running (initialized is enough) and
+	 * then probes SSH on all of them at the same time, for at most
+	 * {@link Instance#TIMEOUT} ms.
+	 */
+	public boolean waitUntilSshAvailable() {
+		if (!waitUntilRunning(true))
+			return false;
+
+		try {
+			return new ReadinessProbe().await(instancesSet, Instance.TIMEOUT).isEmpty();
+		} catch (Exception e) {
+			logger.error("Error while waiting for SSH.", e);
+			return false;
+		}
+	}
+	
 	public abstract void addRunningInstance(String id, String contractId);
 	
 	public void retrieveFiles(String localPath, String remotePath) throws Exception {
@@ -125,7 +145,7 @@ public abstract class VirtualMachine {
 	}
 
 	public void retrieveFiles(String[] filesToBeGet, String localPath, String remotePath) throws Exception {
-		List<Thread> threads = new ArrayList<Thread>();
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
 		
 		if (filesToBeGet != null && filesToBeGet.length > 0) {
 			int count = 1;
@@ -133,19 +153,13 @@ public abstract class VirtualMachine {
 			for (Instance i : instancesSet) {
 				String ip = i.getIp();
 				
-				threads.add(retrieveFilesAsThread(ip, i.vm, count, filesToBeGet, localPath, remotePath));
+				futures.add(retrieveFilesAsync(ip, i.vm, count, filesToBeGet, localPath, remotePath));
 
 				++count;
 			}
 		}
 		
-		for (Thread t : threads) {
-			try {
-				t.join();
-			} catch (Exception e) {
-				logger.error("Error while joining the thread.", e);
-			}
-		}
+		AsyncExecutor.getAll(futures);
 	}
 	
 	public static void retrieveFiles(List<String> ids, VirtualMachine vm, String localPath, String remotePath) throws Exception {
@@ -155,27 +169,22 @@ public abstract class VirtualMachine {
 	}
 	
 	public static void retrieveFiles(List<String> ids, VirtualMachine vm, String[] filesToBeGet, String localPath, String remotePath) throws Exception {
-		List<Thread> threads = new ArrayList<Thread>();
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
 		
 		if (filesToBeGet != null && filesToBeGet.length > 0) {
 			int count = 1;
+			Map<String, String> ips = vm.getIps(ids);
 			
 			for (String id : ids) {
-				String ip = vm.getIp(id);
+				String ip = ips.get(id);
 				
-				threads.add(retrieveFilesAsThread(ip, vm, count, filesToBeGet, localPath, remotePath));
+				futures.add(retrieveFilesAsync(ip, vm, count, filesToBeGet, localPath, remotePath));
 				
 				++count;
 			}
 		}
 		
-		for (Thread t : threads) {
-			try {
-				t.join();
-			} catch (Exception e) {
-				logger.error("Error while joining the thread.", e);
-			}
-		}
+		AsyncExecutor.getAll(futures);
 	}
 	
 	public static void retrieveFiles(String ip, VirtualMachine vm, int count, String localPath, String remotePath) throws Exception {
@@ -184,27 +193,12 @@ public abstract class VirtualMachine {
 			retrieveFiles(ip, vm, count, filesToBeGet.split(";"), localPath, remotePath);
 	}
 	
-	private static Thread retrieveFilesAsThread(String ip, VirtualMachine vm, int count, String[] filesToBeGet, String localPath, String remotePath) throws Exception {
-		final String[] ffilesToBeGet = filesToBeGet;
-		final String flocalPath = localPath;
-		final String fremotePath = remotePath;
-		final VirtualMachine fvm = vm;
-		
-		final String fip = ip;
-		final int fcount = count;
-		
-		Thread t = new Thread() {
-			public void run() {
-				try {
-					retrieveFiles(fip, fvm, fcount, ffilesToBeGet, flocalPath, fremotePath);
-				} catch (Exception e) {
-					logger.error("Error while retrieving the files from the instance.", e);
-				}
-			}
-		};
-		t.start();
-		
-		return t;
+	public static CompletableFuture<Void> retrieveFilesAsync(final String ip, final VirtualMachine vm, final int count,
+			final String[] filesToBeGet, final String localPath, final String remotePath) {
+		return AsyncExecutor.supply(() -> {
+			retrieveFiles(ip, vm, count, filesToBeGet, localPath, remotePath);
+			return null;
+		});
 	}
 	
 	public static void retrieveFiles(String ip, VirtualMachine vm, int count, String[] filesToBeGet, String localPath, String remotePath) throws Exception {
@@ -233,14 +227,20 @@ public abstract class VirtualMachine {
 	}
 
 	public void deleteFiles(String[] filesToBeDeleted) throws Exception {
-		if (filesToBeDeleted != null && filesToBeDeleted.length > 0)
-			for (String s : filesToBeDeleted) {
-				for (Instance i : instancesSet) {
-					i.exec(String.format(
-							"rm -rf %s",
-							s));
-				}
-			}
+		if (filesToBeDeleted != null && filesToBeDeleted.length > 0) {
+			List<String> cmds = getDeleteCommands(filesToBeDeleted);
+			for (Instance i : instancesSet)
+				i.execBatch(cmds);
+		}
+	}
+	
+	private static List<String> getDeleteCommands(String[] filesToBeDeleted) {
+		List<String> cmds = new ArrayList<String>();
+		for (String s : filesToBeDeleted)
+			cmds.add(String.format(
+					"rm -rf %s",
+					s));
+		return cmds;
 	}
 	
 	public static void deleteFiles(String ip, VirtualMachine vm) throws Exception {
@@ -251,11 +251,7 @@ public abstract class VirtualMachine {
 
 	public static void deleteFiles(String ip, VirtualMachine vm, String[] filesToBeDeleted) throws Exception {
 		if (filesToBeDeleted != null && filesToBeDeleted.length > 0)
-			for (String s : filesToBeDeleted) {
-				Ssh.exec(ip, vm, String.format(
-						"rm -rf %s",
-						s));
-			}
+			Ssh.execBatch(ip, vm, getDeleteCommands(filesToBeDeleted));
 	}
 	
 	public List<String> execStarter() throws Exception {
@@ -289,12 +285,51 @@ public abstract class VirtualMachine {
 		return new ArrayList<String>();
 	}
 	
+	private static volatile Broadcast broadcastMode = null;
+
+	public static Broadcast getBroadcastMode() {
+		return broadcastMode;
+	}
+
+	/**
+	 * Makes {@link #exec(String)} (and so all the hooks like the starter or
+	 * the installer) run the commands on all the instances in parallel with the
+	 * given broadcast, or one instance after the other if null (the default).
+	 */
+	public static void setBroadcastMode(Broadcast broadcastMode) {
+		VirtualMachine.broadcastMode = broadcastMode;
+		if (broadcastMode == null)
+			logger.debug("Running the commands on the instances one after the other now...");
+		else
+			logger.debug("Running the commands on up to {} instances in parallel ({}) now...",
+					broadcastMode.getConcurrency(), broadcastMode.getPolicy());
+	}
+
 	public List<String> exec(String cmd) throws Exception {
 		List<String> res = new ArrayList<String>();
-		for (Instance i : getInstances())
-			res.addAll(i.exec(cmd));
+		Broadcast broadcast = broadcastMode;
+		if (broadcast != null) {
+			for (Broadcast.Result r : broadcast.exec(getInstances(), cmd))
+				res.addAll(r.output);
+		} else {
+			for (Instance i : getInstances())
+				res.addAll(i.exec(cmd));
+		}
 		return res;
 	}
+
+	/**
+	 * Runs the command on all the instances in parallel, returning what
+	 * happened on each one of them.
+	 */
+	public List<Broadcast.Result> broadcast(String cmd, Broadcast broadcast) throws Exception {
+		return broadcast.exec(getInstances(), cmd);
+	}
+
+	public List<Broadcast.Result> broadcast(String cmd) throws Exception {
+		Broadcast broadcast = broadcastMode;
+		return broadcast(cmd, broadcast != null ? broadcast : new Broadcast(Broadcast.Policy.BEST_EFFORT));
+	}
 	
 	public void terminate() {
 		if (instancesSet.size() == 0)
@@ -327,6 +362,20 @@ public abstract class VirtualMachine {
 	public static final String PROVIDER_KEY = "provider";
 
 	public abstract String getIp(String id);
+
+	/**
+	 * @return the IPs of the instances that have one, by id. The providers that
+	 *         can should get all of them together.
+	 */
+	public Map<String, String> getIps(List<String> ids) {
+		Map<String, String> res = new HashMap<String, String>();
+		for (String id : ids) {
+			String ip = getIp(id);
+			if (ip != null)
+				res.put(id, ip);
+		}
+		return res;
+	}
 	
 	public abstract void terminate(String id);
 	
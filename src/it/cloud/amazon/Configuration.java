@@ -26,6 +26,7 @@ public abstract class Configuration extends it.cloud.Configuration {
 	
 	public static final String SECURITY_GROUP_DESC = "Security Group generated by cloud-runner";
 	public static final String SECURITY_GROUP_FILE_NAME = "securitygroupcreated.txt";
+	public static final String SPOT_PRICES_FILE_NAME = "spotprices.properties";
 	
 	static {
 		try {
@@ -4,7 +4,9 @@ import java.io.FileOutputStream;
 import java.io.PrintWriter;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
@@ -33,6 +35,7 @@ import com.amazonaws.services.ec2.model.IpPermission;
 import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.services.ec2.model.SecurityGroup;
 import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+import com.amazonaws.services.ec2.model.SpotPrice;
 
 import it.cloud.CloudService;
 import it.cloud.Instance;
@@ -88,8 +91,8 @@ public class AmazonEC2 implements CloudService {
 		for (FirewallRule rule : FirewallRule.rules) {
 			IpPermission ipPermission = new IpPermission();
 			ipPermission.setIpProtocol(rule.protocol);
-			ipPermission.setFromPort(new Integer(rule.from));
-			ipPermission.setToPort(new Integer(rule.to));
+			ipPermission.setFromPort(Integer.valueOf(rule.from));
+			ipPermission.setToPort(Integer.valueOf(rule.to));
 			ArrayList<String> ipRanges = new ArrayList<String>();
 			ipRanges.add(rule.ip);
 			ipPermission.setIpRanges(ipRanges);
@@ -117,47 +120,71 @@ public class AmazonEC2 implements CloudService {
 		}
 	}
 	
-	private static Map<String, double[]> pricesInRegion = new HashMap<String, double[]>();
+	private static final SpotPriceCache prices = new SpotPriceCache(Paths.get(Configuration.SPOT_PRICES_FILE_NAME),
+			new SpotPriceCache.Loader() {
+				@Override
+				public double[] load(String region, String size, String os) throws Exception {
+					return loadPricesInRegion(size, os);
+				}
+			});
 
-	public static double[] getPricesInRegion(String size, String os) {
-		double[] resultInMap = pricesInRegion.get(size + "@" + os);
-		if (resultInMap != null && resultInMap.length > 0)
-			return resultInMap;
-		
-		connect();
-
-		List<String> availabilityZones = getAllAvailabilityZones();
-
-		double res[] = new double[availabilityZones.size()];
-		int i = 0;
-
-		for (String zone : availabilityZones) {
-			DescribeSpotPriceHistoryRequest req = new DescribeSpotPriceHistoryRequest();
-
-			List<String> instanceTypes = new ArrayList<String>();
-			instanceTypes.add(size);
-			req.setInstanceTypes(instanceTypes);
+	public static SpotPriceCache getPriceCache() {
+		return prices;
+	}
 
-			List<String> productDescriptions = new ArrayList<String>();
-			productDescriptions.add(os);
-			req.setProductDescriptions(productDescriptions);
+	public static double[] getPricesInRegion(String size, String os) {
+		try {
+			return prices.get(Configuration.REGION, size, os);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException("Error while getting the spot prices.", e);
+		}
+	}
 
-			req.setAvailabilityZone(zone);
+	private static double[] loadPricesInRegion(String size, String os) {
+		return loadPrices(Collections.singletonList(size), Collections.singletonList(os)).toArray(size, os);
+	}
 
-			req.setMaxResults(1);
+	/**
+	 * Gets the latest spot price of all the sizes and OSes in every
+	 * availability zone of the region, and keeps them in the cache used by
+	 * {@link #getPricesInRegion(String, String)}.
+	 */
+	public static SpotPriceMatrix getPrices(Collection<String> sizes, Collection<String> oses) {
+		SpotPriceMatrix res = loadPrices(sizes, oses);
+		for (String size : res.getSizes())
+			for (String os : oses) {
+				double[] inRegion = res.toArray(size, os);
+				if (inRegion.length > 0)
+					prices.put(res.getRegion(), size, os, inRegion);
+			}
+		return res;
+	}
 
-			DescribeSpotPriceHistoryResult priceResult = client
-					.describeSpotPriceHistory(req);
-			res[i] = Double.parseDouble(priceResult.getSpotPriceHistory()
-					.get(0).getSpotPrice());
+	private static SpotPriceMatrix loadPrices(Collection<String> sizes, Collection<String> oses) {
+		connect();
 
-			logger.debug("Zone: {}, Price: {}", zone,
-					(float) res[i]);
+		long init = System.currentTimeMillis();
+		SpotPriceMatrix res = new SpotPriceMatrix(Configuration.REGION);
 
-			i++;
-		}
+		// with the start time set to now, only the price in effect in every
+		// zone is returned, so a single (paginated) request is enough
+		DescribeSpotPriceHistoryRequest req = new DescribeSpotPriceHistoryRequest();
+		req.setInstanceTypes(new ArrayList<String>(sizes));
+		req.setProductDescriptions(new ArrayList<String>(oses));
+		req.setStartTime(new Date(init));
+		int requests = 0;
+		do {
+			DescribeSpotPriceHistoryResult priceResult = client.describeSpotPriceHistory(req);
+			for (SpotPrice price : priceResult.getSpotPriceHistory())
+				res.add(price);
+			req.setNextToken(priceResult.getNextToken());
+			requests++;
+		} while (req.getNextToken() != null && req.getNextToken().length() > 0);
 
-		pricesInRegion.put(size + "@" + os, res);
+		logger.debug("Got the spot prices in {} request{} ({} ms): {}", requests, requests == 1 ? "" : "s",
+				System.currentTimeMillis() - init, res);
 		return res;
 	}
 	
@@ -255,10 +282,17 @@ public class AmazonEC2 implements CloudService {
 		
 		DescribeSpotInstanceRequestsResult spotResult = client.describeSpotInstanceRequests(spotRequest);
 		List<SpotInstanceRequest> reqs = spotResult.getSpotInstanceRequests();
+
+		// the status of all the candidates is asked for together
+		List<String> ids = new ArrayList<String>();
+		for (SpotInstanceRequest req : reqs)
+			if (req.getInstanceId() != null)
+				ids.add(req.getInstanceId());
+		Map<String, InstanceStatus> statuses = FleetStatus.getInstanceStatuses(ids);
+
 		for (int i = 0; i < reqs.size() && vm.getInstancesNeeded() > vm.getInstancesRunning(); ++i) {
 			SpotInstanceRequest req = reqs.get(i);
-			InstanceStatus status = it.cloud.amazon.ec2.Instance.getInstanceStatus(req.getInstanceId());
-			if (status == InstanceStatus.OK)
+			if (statuses.get(req.getInstanceId()) == InstanceStatus.OK)
 				vm.addRunningInstance(req.getInstanceId(), req.getSpotInstanceRequestId());
 		}
 		
@@ -268,22 +302,27 @@ public class AmazonEC2 implements CloudService {
 		filters = new ArrayList<Filter>();
 		filters.add(new Filter("image-id", getAsList(vm.getImageId()) ));
 		filters.add(new Filter("instance-type", getAsList(vm.getSize()) ));
+		filters.add(new Filter("instance-state-name", getAsList("running") ));
 		
 		DescribeInstancesRequest instanceRequest = new DescribeInstancesRequest();
 		instanceRequest.setFilters(filters);
+		instanceRequest.setMaxResults(FleetStatus.BATCH_SIZE * 10);
 		
-		DescribeInstancesResult instanceResult = client.describeInstances(instanceRequest);
-		List<Reservation> reservations = instanceResult.getReservations();
-		for (int i = 0; i < reservations.size() && vm.getInstancesNeeded() > vm.getInstancesRunning(); ++i) {
-			Reservation req = reservations.get(i);
-			List<com.amazonaws.services.ec2.model.Instance> instances = req.getInstances();
-			for (int j = 0; j < instances.size() && vm.getInstancesNeeded() > vm.getInstancesRunning(); ++j) {
-				com.amazonaws.services.ec2.model.Instance instance = instances.get(j);
-				InstanceStatus status = it.cloud.amazon.ec2.Instance.getInstanceStatus(instance.getInstanceId());
-				if (status == InstanceStatus.OK)
-					vm.addRunningInstance(instance.getInstanceId(), null);
-			}
-		}
+		do {
+			DescribeInstancesResult instanceResult = client.describeInstances(instanceRequest);
+
+			ids = new ArrayList<String>();
+			for (Reservation req : instanceResult.getReservations())
+				for (com.amazonaws.services.ec2.model.Instance instance : req.getInstances())
+					ids.add(instance.getInstanceId());
+			statuses = FleetStatus.getInstanceStatuses(ids);
+
+			for (int i = 0; i < ids.size() && vm.getInstancesNeeded() > vm.getInstancesRunning(); ++i)
+				if (statuses.get(ids.get(i)) == InstanceStatus.OK)
+					vm.addRunningInstance(ids.get(i), null);
+
+			instanceRequest.setNextToken(instanceResult.getNextToken());
+		} while (instanceRequest.getNextToken() != null && vm.getInstancesNeeded() > vm.getInstancesRunning());
 	}
 	
 	public static List<String> getAllAvailabilityZones() {
@@ -0,0 +1,344 @@
+package it.cloud.amazon.ec2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.model.DescribeInstanceStatusRequest;
+import com.amazonaws.services.ec2.model.DescribeInstanceStatusResult;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsResult;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+
+import it.cloud.amazon.ec2.Instance.InstanceStatus;
+
+/**
+ * The status of all the instances (and spot requests) of the fleet, shared by
+ * all the {@link Instance}s. Every id asked for is remembered, and when one of
+ * them must be refreshed all the ones that aren't fresh anymore are described
+ * together, with batched Describe* requests (of up to {@link #BATCH_SIZE} ids,
+ * following the NextToken of the results). This way polling N instances costs
+ * N / {@link #BATCH_SIZE} requests instead of N, and the EC2 API doesn't
+ * throttle the fleet.
+ *
+ * The results are reused for {@link #getMaxAge()} ms.
+ */
+public class FleetStatus {
+
+	private static final Logger logger = LoggerFactory.getLogger(FleetStatus.class);
+
+	public static final int BATCH_SIZE = 100;
+	public static final long DEFAULT_MAX_AGE = 5000;
+
+	private static volatile long maxAge = DEFAULT_MAX_AGE;
+
+	public static long getMaxAge() {
+		return maxAge;
+	}
+
+	public static void setMaxAge(long maxAge) {
+		FleetStatus.maxAge = maxAge;
+		logger.debug("Reusing the status of the instances for {} ms now...", maxAge);
+	}
+
+	private static class Entry<V> {
+		private final V value;
+		private final long time;
+
+		private Entry(V value, long time) {
+			this.value = value;
+			this.time = time;
+		}
+
+		private boolean isFresh(long maxAge) {
+			return System.currentTimeMillis() - time <= maxAge;
+		}
+	}
+
+	/**
+	 * Describes the ids in batches, keeping the last result of each of them. A
+	 * missing value means that the id wasn't found.
+	 */
+	private static abstract class Batcher<V> {
+		private final String name;
+		private final Set<String> known = ConcurrentHashMap.newKeySet();
+		private final Map<String, Entry<V>> cache = new ConcurrentHashMap<String, Entry<V>>();
+		private final ReentrantLock lock = new ReentrantLock();
+
+		private Batcher(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Describes at most {@link #BATCH_SIZE} ids, following the NextToken.
+		 */
+		protected abstract Map<String, V> describe(List<String> ids);
+
+		private V get(String id) {
+			if (id == null)
+				return null;
+			List<String> ids = new ArrayList<String>();
+			ids.add(id);
+			return getAll(ids, maxAge).get(id);
+		}
+
+		private Map<String, V> getAll(Collection<String> ids, long maxAge) {
+			known.addAll(ids);
+
+			if (!isFresh(ids, maxAge)) {
+				lock.lock();
+				try {
+					// another thread could have refreshed them meanwhile
+					if (!isFresh(ids, maxAge))
+						refresh(ids);
+				} finally {
+					lock.unlock();
+				}
+			}
+
+			Map<String, V> res = new LinkedHashMap<String, V>();
+			for (String id : ids) {
+				Entry<V> e = cache.get(id);
+				if (e != null && e.value != null)
+					res.put(id, e.value);
+			}
+			return res;
+		}
+
+		private boolean isFresh(Collection<String> ids, long maxAge) {
+			for (String id : ids) {
+				Entry<V> e = cache.get(id);
+				if (e == null || !e.isFresh(maxAge))
+					return false;
+			}
+			return true;
+		}
+
+		private void refresh(Collection<String> ids) {
+			// the ones asked for first, then all the others known that are
+			// getting old
+			List<String> stale = new ArrayList<String>(ids);
+			Set<String> asked = new HashSet<String>(ids);
+			for (String id : known) {
+				Entry<V> e = cache.get(id);
+				if (!asked.contains(id) && (e == null || !e.isFresh(maxAge)))
+					stale.add(id);
+			}
+
+			long init = System.currentTimeMillis();
+			for (int i = 0; i < stale.size(); i += BATCH_SIZE)
+				fetch(stale.subList(i, Math.min(i + BATCH_SIZE, stale.size())));
+			logger.trace("Described {} {} in {} ms.", stale.size(), name, System.currentTimeMillis() - init);
+		}
+
+		private void fetch(List<String> ids) {
+			Map<String, V> found;
+			try {
+				found = describe(ids);
+			} catch (AmazonServiceException e) {
+				// a single id not found (or not valid) makes the whole request
+				// fail, so the batch is split until it's found
+				if (e.getErrorCode() == null || !e.getErrorCode().startsWith("Invalid"))
+					throw e;
+				if (ids.size() > 1) {
+					fetch(ids.subList(0, ids.size() / 2));
+					fetch(ids.subList(ids.size() / 2, ids.size()));
+					return;
+				}
+				logger.debug("The {} {} wasn't found: {}", name, ids.get(0), e.getErrorCode());
+				found = new HashMap<String, V>();
+				// it won't be described together with the others anymore
+				known.remove(ids.get(0));
+			}
+
+			long now = System.currentTimeMillis();
+			for (String id : ids)
+				cache.put(id, new Entry<V>(found.get(id), now));
+		}
+
+		private void invalidate(String id) {
+			if (id != null)
+				cache.remove(id);
+		}
+
+		private void forget(String id) {
+			if (id == null)
+				return;
+			known.remove(id);
+			cache.remove(id);
+		}
+	}
+
+	private static final Batcher<InstanceStatus> statuses = new Batcher<InstanceStatus>("instance statuses") {
+		@Override
+		protected Map<String, InstanceStatus> describe(List<String> ids) {
+			com.amazonaws.services.ec2.AmazonEC2 client = AmazonEC2.connect();
+
+			Map<String, InstanceStatus> res = new HashMap<String, InstanceStatus>();
+			DescribeInstanceStatusRequest req = new DescribeInstanceStatusRequest();
+			req.setInstanceIds(ids);
+			do {
+				DescribeInstanceStatusResult instanceRes = client.describeInstanceStatus(req);
+				for (com.amazonaws.services.ec2.model.InstanceStatus s : instanceRes.getInstanceStatuses())
+					res.put(s.getInstanceId(), InstanceStatus.valueFromStatus(s));
+				req.setNextToken(instanceRes.getNextToken());
+			} while (req.getNextToken() != null);
+			return res;
+		}
+	};
+
+	private static final Batcher<com.amazonaws.services.ec2.model.Instance> instances = new Batcher<com.amazonaws.services.ec2.model.Instance>(
+			"instances") {
+		@Override
+		protected Map<String, com.amazonaws.services.ec2.model.Instance> describe(List<String> ids) {
+			com.amazonaws.services.ec2.AmazonEC2 client = AmazonEC2.connect();
+
+			Map<String, com.amazonaws.services.ec2.model.Instance> res = new HashMap<String, com.amazonaws.services.ec2.model.Instance>();
+			DescribeInstancesRequest req = new DescribeInstancesRequest();
+			req.setInstanceIds(ids);
+			do {
+				DescribeInstancesResult instanceRes = client.describeInstances(req);
+				for (Reservation r : instanceRes.getReservations())
+					for (com.amazonaws.services.ec2.model.Instance i : r.getInstances())
+						res.put(i.getInstanceId(), i);
+				req.setNextToken(instanceRes.getNextToken());
+			} while (req.getNextToken() != null);
+			return res;
+		}
+	};
+
+	private static final Batcher<SpotInstanceRequest> spotRequests = new Batcher<SpotInstanceRequest>(
+			"spot requests") {
+		@Override
+		protected Map<String, SpotInstanceRequest> describe(List<String> ids) {
+			com.amazonaws.services.ec2.AmazonEC2 client = AmazonEC2.connect();
+
+			// all the requests asked for by id come in a single page
+			Map<String, SpotInstanceRequest> res = new HashMap<String, SpotInstanceRequest>();
+			DescribeSpotInstanceRequestsRequest req = new DescribeSpotInstanceRequestsRequest();
+			req.setSpotInstanceRequestIds(ids);
+			DescribeSpotInstanceRequestsResult spotRes = client.describeSpotInstanceRequests(req);
+			for (SpotInstanceRequest r : spotRes.getSpotInstanceRequests())
+				res.put(r.getSpotInstanceRequestId(), r);
+			return res;
+		}
+	};
+
+	/**
+	 * @return the status of the instance, INSTANCE_NOT_FOUND if it isn't
+	 *         running or it doesn't exist.
+	 */
+	public static InstanceStatus getInstanceStatus(String id) {
+		InstanceStatus res = statuses.get(id);
+		return res == null ? InstanceStatus.INSTANCE_NOT_FOUND : res;
+	}
+
+	/**
+	 * @return the status of the instances that were found.
+	 */
+	public static Map<String, InstanceStatus> getInstanceStatuses(Collection<String> ids) {
+		return statuses.getAll(ids, maxAge);
+	}
+
+	/**
+	 * Like {@link #getInstanceStatuses(Collection)}, reusing the results only
+	 * if they aren't older than the given ms.
+	 */
+	public static Map<String, InstanceStatus> getInstanceStatuses(Collection<String> ids, long maxAge) {
+		return statuses.getAll(ids, maxAge);
+	}
+
+	/**
+	 * @return the description of the instance, null if it doesn't exist.
+	 */
+	public static com.amazonaws.services.ec2.model.Instance getInstance(String id) {
+		return instances.get(id);
+	}
+
+	/**
+	 * @return the description of the instances that were found.
+	 */
+	public static Map<String, com.amazonaws.services.ec2.model.Instance> getInstances(Collection<String> ids) {
+		return instances.getAll(ids, maxAge);
+	}
+
+	/**
+	 * Like {@link #getInstances(Collection)}, reusing the results only if they
+	 * aren't older than the given ms.
+	 */
+	public static Map<String, com.amazonaws.services.ec2.model.Instance> getInstances(Collection<String> ids,
+			long maxAge) {
+		return instances.getAll(ids, maxAge);
+	}
+
+	/**
+	 * @return the spot request, null if it doesn't exist.
+	 */
+	public static SpotInstanceRequest getSpotRequest(String spotRequestId) {
+		return spotRequests.get(spotRequestId);
+	}
+
+	/**
+	 * @return the spot requests that were found.
+	 */
+	public static Map<String, SpotInstanceRequest> getSpotRequests(Collection<String> spotRequestIds) {
+		return spotRequests.getAll(spotRequestIds, maxAge);
+	}
+
+	/**
+	 * Like {@link #getSpotRequests(Collection)}, reusing the results only if
+	 * they aren't older than the given ms.
+	 */
+	public static Map<String, SpotInstanceRequest> getSpotRequests(Collection<String> spotRequestIds, long maxAge) {
+		return spotRequests.getAll(spotRequestIds, maxAge);
+	}
+
+	/**
+	 * Makes the instance (and its spot request) be described together with
+	 * the others from now on.
+	 */
+	public static void track(String id, String spotRequestId) {
+		if (id != null) {
+			statuses.known.add(id);
+			instances.known.add(id);
+		}
+		if (spotRequestId != null)
+			spotRequests.known.add(spotRequestId);
+	}
+
+	/**
+	 * Drops what is known about the instance (and its spot request), that is
+	 * described again the next time it's asked for, e.g. because it was
+	 * rebooted.
+	 */
+	public static void invalidate(String id, String spotRequestId) {
+		statuses.invalidate(id);
+		instances.invalidate(id);
+		spotRequests.invalidate(spotRequestId);
+	}
+
+	/**
+	 * Stops describing the instance (and its spot request), e.g. because it
+	 * was terminated.
+	 */
+	public static void forget(String id, String spotRequestId) {
+		statuses.forget(id);
+		instances.forget(id);
+		spotRequests.forget(spotRequestId);
+	}
+
+}
@@ -0,0 +1,191 @@
+package it.cloud.amazon.ec2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+
+import it.cloud.amazon.ec2.Instance.InstanceStatus;
+import it.cloud.amazon.ec2.Instance.SpotState;
+import it.cloud.utils.AsyncExecutor;
+import it.cloud.utils.Utilities;
+
+/**
+ * Waits for many instances to be running with a single polling loop: at every
+ * round the spot requests still open and the instances still booting are
+ * described all together through {@link FleetStatus}. The interval between the
+ * rounds starts short (the instances already running are found quickly) and
+ * grows at every round up to a maximum (the ones still booting aren't polled
+ * uselessly).
+ *
+ * The {@link Listener} is told about every instance as soon as it's ready (or
+ * it failed), on the {@link AsyncExecutor}, so that it can be set up while the
+ * others are still booting.
+ */
+public class FleetWaiter {
+
+	private static final Logger logger = LoggerFactory.getLogger(FleetWaiter.class);
+
+	public static final long DEFAULT_MIN_INTERVAL = 2000;
+	public static final long DEFAULT_MAX_INTERVAL = 15000;
+	public static final double DEFAULT_MULTIPLIER = 1.5;
+
+	/**
+	 * Gets notified of every instance, from a thread of the
+	 * {@link AsyncExecutor}.
+	 */
+	public static interface Listener {
+		public void ready(Instance instance);
+
+		public void failed(Instance instance, String state);
+
+		public static final Listener NONE = new Listener() {
+			@Override
+			public void ready(Instance instance) {
+			}
+
+			@Override
+			public void failed(Instance instance, String state) {
+			}
+		};
+	}
+
+	private final long minInterval;
+	private final long maxInterval;
+	private final double multiplier;
+	private final Listener listener;
+
+	public FleetWaiter(long minInterval, long maxInterval, double multiplier, Listener listener) {
+		this.minInterval = minInterval;
+		this.maxInterval = maxInterval;
+		this.multiplier = multiplier;
+		this.listener = listener == null ? Listener.NONE : listener;
+	}
+
+	public FleetWaiter(Listener listener) {
+		this(DEFAULT_MIN_INTERVAL, DEFAULT_MAX_INTERVAL, DEFAULT_MULTIPLIER, listener);
+	}
+
+	public FleetWaiter() {
+		this(Listener.NONE);
+	}
+
+	/**
+	 * Waits until all the instances are running (or initializing, if it's
+	 * enough), without a timeout.
+	 *
+	 * @return the instances that failed, empty if all of them are running.
+	 */
+	public List<Instance> await(List<Instance> instances, boolean initializedIsEnough) {
+		return await(instances, initializedIsEnough, -1);
+	}
+
+	/**
+	 * Waits until all the instances are running (or initializing, if it's
+	 * enough), or the timeout (in ms, if positive) expires.
+	 *
+	 * @return the instances that failed or aren't running yet, empty if all of
+	 *         them are running.
+	 */
+	public List<Instance> await(List<Instance> instances, boolean initializedIsEnough, long timeout) {
+		long init = System.currentTimeMillis();
+
+		List<Instance> pending = new ArrayList<Instance>(instances);
+		List<Instance> failed = new ArrayList<Instance>();
+		long interval = minInterval;
+
+		while (true) {
+			long round = System.currentTimeMillis();
+
+			List<String> spotRequestIds = new ArrayList<String>();
+			for (Instance i : pending)
+				if (i.id == null && i.spotRequestId != null)
+					spotRequestIds.add(i.spotRequestId);
+			Map<String, SpotInstanceRequest> spotRequests = FleetStatus.getSpotRequests(spotRequestIds, 0);
+
+			List<String> ids = new ArrayList<String>();
+			for (Instance i : new ArrayList<Instance>(pending)) {
+				if (i.id == null) {
+					SpotInstanceRequest req = spotRequests.get(i.spotRequestId);
+					SpotState state = req == null ? SpotState.SPOT_REQUEST_NOT_FOUND : SpotState.valueFromRequest(req);
+					if (state == SpotState.OPEN)
+						continue;
+					if (state != SpotState.ACTIVE || req.getInstanceId() == null) {
+						logger.error("The spot request {} failed to start and is in the {} state!", i.spotRequestId,
+								state.getState());
+						done(i, pending, failed, state.getState());
+						continue;
+					}
+					i.id = req.getInstanceId();
+					FleetStatus.track(i.id, null);
+				}
+				ids.add(i.id);
+			}
+
+			Map<String, InstanceStatus> statuses = FleetStatus.getInstanceStatuses(ids, 0);
+			for (Instance i : new ArrayList<Instance>(pending)) {
+				if (i.id == null)
+					continue;
+				InstanceStatus status = statuses.get(i.id);
+				if (status == null)
+					status = InstanceStatus.INSTANCE_NOT_FOUND;
+
+				if (status == InstanceStatus.OK || (status == InstanceStatus.INITIALIZING && initializedIsEnough)) {
+					logger.debug("Instance {} running after {}.", i.id,
+							Utilities.durationToString(System.currentTimeMillis() - init));
+					done(i, pending, null, null);
+				} else if (status != InstanceStatus.INSTANCE_NOT_FOUND && status != InstanceStatus.INITIALIZING) {
+					logger.error("The instance {} is in the {} state!", i.id, status.getStatus());
+					done(i, pending, failed, status.getStatus());
+				}
+			}
+
+			if (pending.isEmpty())
+				break;
+
+			long now = System.currentTimeMillis();
+			if (timeout > 0 && now + interval - init > timeout) {
+				logger.warn("{} instance{} not running after {}.", pending.size(), pending.size() == 1 ? "" : "s",
+						Utilities.durationToString(now - init));
+				failed.addAll(pending);
+				break;
+			}
+
+			logger.trace("{} instance{} still pending, checking again in {} ms...", pending.size(),
+					pending.size() == 1 ? "" : "s", interval);
+			try {
+				Thread.sleep(Math.max(0, interval - (now - round)));
+			} catch (InterruptedException e) {
+				logger.error("Error while waiting.", e);
+				Thread.currentThread().interrupt();
+				failed.addAll(pending);
+				break;
+			}
+			interval = Math.min((long) (interval * multiplier), maxInterval);
+		}
+
+		return failed;
+	}
+
+	private void done(final Instance i, List<Instance> pending, List<Instance> failed, final String state) {
+		pending.remove(i);
+		if (failed != null)
+			failed.add(i);
+
+		AsyncExecutor.supply(() -> {
+			if (state == null)
+				listener.ready(i);
+			else
+				listener.failed(i, state);
+			return null;
+		}).whenComplete((r, t) -> {
+			if (t != null)
+				logger.error("Error in the listener of the instance {}.", i.id, t);
+		});
+	}
+
+}
@@ -6,12 +6,6 @@ import java.util.List;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.ec2.model.CancelSpotInstanceRequestsRequest;
 import com.amazonaws.services.ec2.model.CreateTagsRequest;
-import com.amazonaws.services.ec2.model.DescribeInstanceStatusRequest;
-import com.amazonaws.services.ec2.model.DescribeInstanceStatusResult;
-import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
-import com.amazonaws.services.ec2.model.DescribeInstancesResult;
-import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
-import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsResult;
 import com.amazonaws.services.ec2.model.RebootInstancesRequest;
 import com.amazonaws.services.ec2.model.SpotInstanceRequest;
 import com.amazonaws.services.ec2.model.Tag;
@@ -30,6 +24,7 @@ public class Instance extends it.cloud.Instance {
 		req.setInstanceIds(instanceIds);
 
 		client.rebootInstances(req);
+		FleetStatus.invalidate(id, spotRequestId);
 	}
 
 	public void setName(String name) {
@@ -50,6 +45,7 @@ public class Instance extends it.cloud.Instance {
 	Instance(VirtualMachine vm, String id, String spotRequestId) {
 		super(vm, id);
 		this.spotRequestId = spotRequestId;
+		FleetStatus.track(id, spotRequestId);
 	}
 
 	@Override
@@ -73,24 +69,16 @@ public class Instance extends it.cloud.Instance {
 			return null;
 		}
 
-		com.amazonaws.services.ec2.AmazonEC2 client = AmazonEC2.connect();
-
-		DescribeInstancesRequest instanceReq = new DescribeInstancesRequest();
-		List<String> instanceIds = new ArrayList<String>();
-		instanceIds.add(id);
-		instanceReq.setInstanceIds(instanceIds);
-
-		DescribeInstancesResult instanceRes = client
-				.describeInstances(instanceReq);
-
-		String ip = null;
-		
+		String ip;
 		try {
-			ip = instanceRes.getReservations().get(0).getInstances().get(0)
-					.getPublicIpAddress();
+			ip = InstanceMetadataCache.getIp(id);
 		} catch (Exception e) {
 			logger.error("Error while getting the IP.", e);
+			return null;
 		}
+		// normal while the instance is booting
+		if (ip == null)
+			logger.debug("The instance {} doesn't have an IP yet.", id);
 
 		return ip;
 	}
@@ -99,18 +87,10 @@ public class Instance extends it.cloud.Instance {
 		if (spotRequestId == null)
 			return SpotState.SPOT_REQUEST_NOT_FOUND;
 
-		com.amazonaws.services.ec2.AmazonEC2 client = AmazonEC2.connect();
-
-		DescribeSpotInstanceRequestsRequest spotInstanceReq = new DescribeSpotInstanceRequestsRequest();
-		List<String> spotInstanceRequestIds = new ArrayList<String>();
-		spotInstanceRequestIds.add(spotRequestId);
-		spotInstanceReq.setSpotInstanceRequestIds(spotInstanceRequestIds);
-		DescribeSpotInstanceRequestsResult res = client
-				.describeSpotInstanceRequests(spotInstanceReq);
-
-		List<SpotInstanceRequest> reqs = res.getSpotInstanceRequests();
-		if (reqs.size() > 0) {
-			SpotInstanceRequest req = reqs.get(0);
+		SpotInstanceRequest req = FleetStatus.getSpotRequest(spotRequestId);
+		if (req != null) {
+			if (id == null && req.getInstanceId() != null)
+				FleetStatus.track(req.getInstanceId(), null);
 			id = req.getInstanceId();
 			return SpotState.valueFromRequest(req);
 		} else {
@@ -125,22 +105,7 @@ public class Instance extends it.cloud.Instance {
 				return InstanceStatus.INSTANCE_NOT_FOUND;
 		}
 
-		com.amazonaws.services.ec2.AmazonEC2 client = AmazonEC2.connect();
-
-		DescribeInstanceStatusRequest instanceReq = new DescribeInstanceStatusRequest();
-		List<String> instanceIds = new ArrayList<String>();
-		instanceIds.add(id);
-		instanceReq.setInstanceIds(instanceIds);
-		DescribeInstanceStatusResult instanceRes = client
-				.describeInstanceStatus(instanceReq);
-
-		List<com.amazonaws.services.ec2.model.InstanceStatus> reqs = instanceRes
-				.getInstanceStatuses();
-		if (reqs.size() > 0)
-			return InstanceStatus.valueFromStatus(reqs.get(0));
-		else {
-			return InstanceStatus.INSTANCE_NOT_FOUND;
-		}
+		return FleetStatus.getInstanceStatus(id);
 	}
 
 	public static InstanceStatus getInstanceStatus(String id) {
@@ -148,32 +113,17 @@ public class Instance extends it.cloud.Instance {
 			return InstanceStatus.INSTANCE_NOT_FOUND;
 		}
 
-		com.amazonaws.services.ec2.AmazonEC2 client = AmazonEC2.connect();
-
-		DescribeInstanceStatusRequest instanceReq = new DescribeInstanceStatusRequest();
-		List<String> instanceIds = new ArrayList<String>();
-		instanceIds.add(id);
-		instanceReq.setInstanceIds(instanceIds);
-		DescribeInstanceStatusResult instanceRes;
 		try {
-			instanceRes = client
-					.describeInstanceStatus(instanceReq);
+			return FleetStatus.getInstanceStatus(id);
 		} catch (Exception e) {
 			return InstanceStatus.INSTANCE_NOT_FOUND;
 		}
-
-		List<com.amazonaws.services.ec2.model.InstanceStatus> reqs = instanceRes
-				.getInstanceStatuses();
-		if (reqs.size() > 0)
-			return InstanceStatus.valueFromStatus(reqs.get(0));
-		else {
-			return InstanceStatus.INSTANCE_NOT_FOUND;
-		}
 	}
 
 	public void terminate() throws AmazonServiceException {
 		terminateSpotRequest();
 		terminateInstance();
+		FleetStatus.forget(id, spotRequestId);
 
 		ip = null;
 	}
@@ -0,0 +1,138 @@
+package it.cloud.amazon.ec2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The metadata of the instances (IP, state, spot request and launch time),
+ * taken from the descriptions kept by {@link FleetStatus}, so that they are
+ * got with batched requests and shared by everybody. Every field has its own
+ * TTL, depending on how often it can change: the launch time never does, the
+ * IP doesn't while the instance is running, the state can change at any
+ * moment. A field is described again only if the description is older than
+ * its TTL.
+ *
+ * Terminating or rebooting an {@link Instance} invalidates its metadata.
+ */
+public class InstanceMetadataCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(InstanceMetadataCache.class);
+
+	public static enum Field {
+		IP(10 * 60 * 1000), STATE(5000), SPOT_REQUEST(60 * 1000), LAUNCH_TIME(Long.MAX_VALUE);
+
+		private final long defaultTtl;
+
+		private Field(long defaultTtl) {
+			this.defaultTtl = defaultTtl;
+		}
+
+		public long getDefaultTtl() {
+			return defaultTtl;
+		}
+	}
+
+	private static final Map<Field, Long> ttls = Collections.synchronizedMap(new EnumMap<Field, Long>(Field.class));
+
+	public static long getTtl(Field field) {
+		Long res = ttls.get(field);
+		return res == null ? field.getDefaultTtl() : res;
+	}
+
+	public static void setTtl(Field field, long ttl) {
+		ttls.put(field, ttl);
+		logger.debug("Keeping the {} of the instances for {} ms now...", field, ttl);
+	}
+
+	private static Map<String, com.amazonaws.services.ec2.model.Instance> describe(Collection<String> ids,
+			Field field) {
+		Map<String, com.amazonaws.services.ec2.model.Instance> res = FleetStatus.getInstances(ids, getTtl(field));
+
+		// a value still missing can appear at any moment (e.g. the IP while
+		// the instance is starting), as the state
+		List<String> missing = new ArrayList<String>();
+		for (String id : ids) {
+			com.amazonaws.services.ec2.model.Instance i = res.get(id);
+			if (i == null || get(i, field) == null)
+				missing.add(id);
+		}
+		if (missing.size() > 0 && getTtl(Field.STATE) < getTtl(field))
+			res.putAll(FleetStatus.getInstances(missing, getTtl(Field.STATE)));
+
+		return res;
+	}
+
+	private static Object get(com.amazonaws.services.ec2.model.Instance i, Field field) {
+		switch (field) {
+		case IP:
+			return i.getPublicIpAddress();
+		case STATE:
+			return i.getState() == null ? null : i.getState().getName();
+		case SPOT_REQUEST:
+			return i.getSpotInstanceRequestId();
+		case LAUNCH_TIME:
+			return i.getLaunchTime();
+		default:
+			return null;
+		}
+	}
+
+	private static Map<String, Object> getAll(Collection<String> ids, Field field) {
+		Map<String, Object> res = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, com.amazonaws.services.ec2.model.Instance> e : describe(ids, field).entrySet()) {
+			Object value = get(e.getValue(), field);
+			if (value != null)
+				res.put(e.getKey(), value);
+		}
+		return res;
+	}
+
+	private static Object get(String id, Field field) {
+		if (id == null)
+			return null;
+		return getAll(Collections.singletonList(id), field).get(id);
+	}
+
+	/**
+	 * @return the public IPs of the instances that have one.
+	 */
+	public static Map<String, String> getIps(Collection<String> ids) {
+		Map<String, String> res = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, Object> e : getAll(ids, Field.IP).entrySet())
+			res.put(e.getKey(), (String) e.getValue());
+		return res;
+	}
+
+	public static String getIp(String id) {
+		return (String) get(id, Field.IP);
+	}
+
+	/**
+	 * @return the name of the state of the instance (pending, running, ...).
+	 */
+	public static String getState(String id) {
+		return (String) get(id, Field.STATE);
+	}
+
+	public static String getSpotRequestId(String id) {
+		return (String) get(id, Field.SPOT_REQUEST);
+	}
+
+	public static Date getLaunchTime(String id) {
+		return (Date) get(id, Field.LAUNCH_TIME);
+	}
+
+	public static void invalidate(String id) {
+		FleetStatus.invalidate(id, null);
+	}
+
+}
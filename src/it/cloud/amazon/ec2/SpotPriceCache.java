@@ -0,0 +1,207 @@
+package it.cloud.amazon.ec2;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.cloud.utils.AsyncExecutor;
+import it.cloud.utils.Utilities;
+
+/**
+ * The spot prices (one per availability zone) by region, size and OS. The
+ * prices are saved in a local file, so that they're already there when the
+ * JVM starts again. A price older than the TTL is still used, but refreshed in
+ * background; one older than the maximum staleness is refreshed before being
+ * used, as a request made with it would be likely to fail.
+ */
+public class SpotPriceCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(SpotPriceCache.class);
+
+	public static final long DEFAULT_TTL = 30 * 60 * 1000;
+	public static final long DEFAULT_MAX_STALENESS = 24 * 60 * 60 * 1000;
+
+	/**
+	 * Gets the prices from the cloud.
+	 */
+	public static interface Loader {
+		public double[] load(String region, String size, String os) throws Exception;
+	}
+
+	private static class Entry {
+		private final double[] prices;
+		private final long time;
+
+		private Entry(double[] prices, long time) {
+			this.prices = prices;
+			this.time = time;
+		}
+	}
+
+	private final Path file;
+	private final Loader loader;
+	private volatile long ttl = DEFAULT_TTL;
+	private volatile long maxStaleness = DEFAULT_MAX_STALENESS;
+
+	private final Map<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+	private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+	private boolean loaded = false;
+
+	/**
+	 * @param file
+	 *            where the prices are saved, null to keep them only in
+	 *            memory.
+	 */
+	public SpotPriceCache(Path file, Loader loader) {
+		this.file = file;
+		this.loader = loader;
+	}
+
+	public long getTtl() {
+		return ttl;
+	}
+
+	public void setTtl(long ttl) {
+		this.ttl = ttl;
+	}
+
+	public long getMaxStaleness() {
+		return maxStaleness;
+	}
+
+	public void setMaxStaleness(long maxStaleness) {
+		this.maxStaleness = maxStaleness;
+	}
+
+	private static String getKey(String region, String size, String os) {
+		return region + "@" + size + "@" + os;
+	}
+
+	/**
+	 * @return the prices, an empty array if there aren't any.
+	 */
+	public double[] get(final String region, final String size, final String os) throws Exception {
+		load();
+
+		final String key = getKey(region, size, os);
+		Entry e = cache.get(key);
+		long age = e == null ? Long.MAX_VALUE : System.currentTimeMillis() - e.time;
+
+		if (age <= ttl)
+			return e.prices;
+
+		if (age <= maxStaleness) {
+			if (refreshing.add(key)) {
+				logger.debug("Refreshing the spot prices of {} in background ({} old)...", key,
+						Utilities.durationToString(age));
+				AsyncExecutor.supply(() -> {
+					try {
+						return refresh(key, region, size, os);
+					} finally {
+						refreshing.remove(key);
+					}
+				}).whenComplete((r, t) -> {
+					if (t != null)
+						logger.warn("Error while refreshing the spot prices of {}.", key, t);
+				});
+			}
+			return e.prices;
+		}
+
+		return refresh(key, region, size, os);
+	}
+
+	private double[] refresh(String key, String region, String size, String os) throws Exception {
+		double[] prices = loader.load(region, size, os);
+		if (prices != null && prices.length > 0) {
+			cache.put(key, new Entry(prices, System.currentTimeMillis()));
+			save();
+		}
+		return prices == null ? new double[0] : prices;
+	}
+
+	/**
+	 * Keeps the prices got elsewhere, e.g. together with the ones of other
+	 * sizes.
+	 */
+	public void put(String region, String size, String os, double[] prices) {
+		load();
+		cache.put(getKey(region, size, os), new Entry(prices, System.currentTimeMillis()));
+		save();
+	}
+
+	public void invalidate(String region, String size, String os) {
+		cache.remove(getKey(region, size, os));
+	}
+
+	private synchronized void load() {
+		if (loaded || file == null)
+			return;
+		loaded = true;
+
+		if (!Files.exists(file))
+			return;
+
+		Properties props = new Properties();
+		try (InputStream in = Files.newInputStream(file)) {
+			props.load(in);
+		} catch (Exception e) {
+			logger.warn("Error while reading the spot prices from {}.", file, e);
+			return;
+		}
+
+		for (String key : props.stringPropertyNames()) {
+			try {
+				String[] parts = props.getProperty(key).split(";");
+				String[] values = parts[1].split(",");
+				double[] prices = new double[values.length];
+				for (int i = 0; i < values.length; ++i)
+					prices[i] = Double.parseDouble(values[i]);
+				cache.putIfAbsent(key, new Entry(prices, Long.parseLong(parts[0])));
+			} catch (Exception e) {
+				logger.debug("Ignoring the spot prices of {} in {}.", key, file);
+			}
+		}
+		logger.debug("{} spot prices loaded from {}.", cache.size(), file);
+	}
+
+	private synchronized void save() {
+		if (file == null)
+			return;
+
+		Properties props = new Properties();
+		for (Map.Entry<String, Entry> e : cache.entrySet()) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(e.getValue().time).append(";");
+			double[] prices = e.getValue().prices;
+			for (int i = 0; i < prices.length; ++i) {
+				if (i > 0)
+					sb.append(",");
+				sb.append(prices[i]);
+			}
+			props.setProperty(e.getKey(), sb.toString());
+		}
+
+		// written aside and then moved, so that a crash doesn't leave half
+		// a file
+		try {
+			Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			try (OutputStream out = Files.newOutputStream(tmp)) {
+				props.store(out, "Spot prices: time;price in each zone");
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (Exception e) {
+			logger.warn("Error while saving the spot prices to {}.", file, e);
+		}
+	}
+
+}
@@ -0,0 +1,114 @@
+package it.cloud.amazon.ec2;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.amazonaws.services.ec2.model.SpotPrice;
+
+/**
+ * The latest spot price of every size and OS in every availability zone of a
+ * region.
+ */
+public class SpotPriceMatrix {
+
+	private final String region;
+	// size -> os -> zone -> price
+	private final Map<String, Map<String, Map<String, Double>>> prices = new TreeMap<String, Map<String, Map<String, Double>>>();
+	private final Map<String, Date> times = new TreeMap<String, Date>();
+
+	public SpotPriceMatrix(String region) {
+		this.region = region;
+	}
+
+	public String getRegion() {
+		return region;
+	}
+
+	/**
+	 * Adds the price, unless there's already a more recent one for the same
+	 * size, OS and zone.
+	 */
+	public synchronized void add(SpotPrice price) {
+		String key = price.getInstanceType() + "@" + price.getProductDescription() + "@" + price.getAvailabilityZone();
+		Date time = price.getTimestamp();
+		Date previous = times.get(key);
+		if (previous != null && time != null && !time.after(previous))
+			return;
+		times.put(key, time);
+
+		Map<String, Map<String, Double>> bySize = prices.get(price.getInstanceType());
+		if (bySize == null) {
+			bySize = new TreeMap<String, Map<String, Double>>();
+			prices.put(price.getInstanceType(), bySize);
+		}
+		Map<String, Double> byOs = bySize.get(price.getProductDescription());
+		if (byOs == null) {
+			byOs = new TreeMap<String, Double>();
+			bySize.put(price.getProductDescription(), byOs);
+		}
+		byOs.put(price.getAvailabilityZone(), Double.parseDouble(price.getSpotPrice()));
+	}
+
+	public synchronized Set<String> getSizes() {
+		return new TreeSet<String>(prices.keySet());
+	}
+
+	public synchronized Set<String> getZones() {
+		Set<String> res = new TreeSet<String>();
+		for (Map<String, Map<String, Double>> bySize : prices.values())
+			for (Map<String, Double> byOs : bySize.values())
+				res.addAll(byOs.keySet());
+		return res;
+	}
+
+	/**
+	 * @return the price in every zone, sorted by zone (empty if there isn't
+	 *         any).
+	 */
+	public synchronized Map<String, Double> getPrices(String size, String os) {
+		Map<String, Double> res = new TreeMap<String, Double>();
+		Map<String, Map<String, Double>> bySize = prices.get(size);
+		if (bySize != null && bySize.containsKey(os))
+			res.putAll(bySize.get(os));
+		return res;
+	}
+
+	/**
+	 * @return the price, null if there isn't any.
+	 */
+	public Double getPrice(String size, String os, String zone) {
+		return getPrices(size, os).get(zone);
+	}
+
+	/**
+	 * @return the highest price among the zones, -1 if there isn't any.
+	 */
+	public double getMaxPrice(String size, String os) {
+		double res = -1;
+		for (double price : getPrices(size, os).values())
+			res = Math.max(res, price);
+		return res;
+	}
+
+	/**
+	 * @return the prices in the zones (sorted by zone), as returned by
+	 *         {@link AmazonEC2#getPricesInRegion(String, String)}.
+	 */
+	public double[] toArray(String size, String os) {
+		Map<String, Double> byZone = getPrices(size, os);
+		double[] res = new double[byZone.size()];
+		int i = 0;
+		for (double price : byZone.values())
+			res[i++] = price;
+		return res;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("Spot prices in %s: %s", region, prices);
+	}
+
+}
@@ -233,6 +233,31 @@ public class VirtualMachine extends it.cloud.VirtualMachine {
 			((Instance)i).setName(name);
 	}
 
+	/**
+	 * Waits for all the instances together, with a {@link FleetWaiter}.
+	 */
+	@Override
+	public boolean waitUntilRunning(boolean initializedIsEnough) {
+		return waitUntilRunning(initializedIsEnough, FleetWaiter.Listener.NONE);
+	}
+
+	/**
+	 * Waits for all the instances together, telling the listener about each
+	 * of them as soon as it's running.
+	 */
+	public boolean waitUntilRunning(boolean initializedIsEnough, FleetWaiter.Listener listener) {
+		if (instancesSet.size() == 0) {
+			logger.error("You didn't start any machine!");
+			return false;
+		}
+
+		List<Instance> instances = new ArrayList<Instance>();
+		for (it.cloud.Instance i : instancesSet)
+			instances.add((Instance) i);
+
+		return new FleetWaiter(listener).await(instances, initializedIsEnough).isEmpty();
+	}
+
 	@Override
 	public void addRunningInstance(String id, String spotRequestId) {
 		for (it.cloud.Instance i : instancesSet)
@@ -325,6 +350,11 @@ public class VirtualMachine extends it.cloud.VirtualMachine {
 	public String getIp(String id) {
 		return Instance.getIp(id);
 	}
+
+	@Override
+	public Map<String, String> getIps(List<String> ids) {
+		return InstanceMetadataCache.getIps(ids);
+	}
 	
 	@Override
 	public void terminate(String id) {
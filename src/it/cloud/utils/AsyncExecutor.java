@@ -0,0 +1,315 @@
+package it.cloud.utils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The executor shared by all the asynchronous operations (commands and
+ * transfers on the remote machines, local commands, ...). It uses at most
+ * {@link #getMaxThreads()} threads, the tasks exceeding them wait in a queue,
+ * so that operating on a whole fleet doesn't mean starting one thread per
+ * machine.
+ *
+ * It keeps track of how many tasks were run, how many failed and how long they
+ * waited in the queue and ran, to help choosing the right number of threads.
+ *
+ * The tasks shouldn't wait for other tasks run by this executor, or they could
+ * end up waiting forever when all the threads are busy.
+ *
+ * With {@link #setVirtualThreads(boolean)} every task (and every thread
+ * started with {@link #newThread(Runnable, String)}, like the ones reading the
+ * output of the commands) gets its own virtual thread instead: blocking on the
+ * network doesn't hold an OS thread anymore, so thousands of hosts can be
+ * driven at the same time. {@link #getMaxThreads()} then limits how many tasks
+ * run at the same time.
+ */
+public abstract class AsyncExecutor {
+
+	protected static final Logger logger = LoggerFactory.getLogger(AsyncExecutor.class);
+
+	public static final int DEFAULT_MAX_THREADS = 32;
+	public static final long KEEP_ALIVE = 60 * 1000;
+
+	private static ThreadPoolExecutor executor = null;
+	private static ExecutorService virtualExecutor = null;
+	private static int maxThreads = DEFAULT_MAX_THREADS;
+	private static volatile boolean virtualThreads = false;
+	private static final Permits virtualPermits = new Permits(DEFAULT_MAX_THREADS);
+
+	private static final AtomicLong submitted = new AtomicLong();
+	private static final AtomicLong completed = new AtomicLong();
+	private static final AtomicLong failed = new AtomicLong();
+	private static final AtomicLong waitTime = new AtomicLong();
+	private static final AtomicLong runTime = new AtomicLong();
+	private static final AtomicInteger queued = new AtomicInteger();
+	private static final AtomicInteger active = new AtomicInteger();
+
+	public static synchronized int getMaxThreads() {
+		return maxThreads;
+	}
+
+	public static synchronized void setMaxThreads(int maxThreads) {
+		if (maxThreads <= 0)
+			throw new IllegalArgumentException("There should be at least one thread.");
+		int delta = maxThreads - AsyncExecutor.maxThreads;
+		AsyncExecutor.maxThreads = maxThreads;
+		if (delta > 0)
+			virtualPermits.release(delta);
+		else if (delta < 0)
+			virtualPermits.reduce(-delta);
+		if (executor != null) {
+			if (maxThreads > executor.getMaximumPoolSize()) {
+				executor.setMaximumPoolSize(maxThreads);
+				executor.setCorePoolSize(maxThreads);
+			} else {
+				executor.setCorePoolSize(maxThreads);
+				executor.setMaximumPoolSize(maxThreads);
+			}
+		}
+		logger.debug("Using up to {} threads for the asynchronous operations now...", maxThreads);
+	}
+
+	public static boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public static void setVirtualThreads(boolean virtualThreads) {
+		AsyncExecutor.virtualThreads = virtualThreads;
+		logger.debug("Using {} threads for the asynchronous operations now...", virtualThreads ? "virtual" : "platform");
+	}
+
+	/**
+	 * Creates (without starting it) a virtual or a platform thread, depending
+	 * on {@link #isVirtualThreads()}.
+	 */
+	public static Thread newThread(Runnable r, String name) {
+		if (virtualThreads)
+			return Thread.ofVirtual().name(name).unstarted(r);
+		return new Thread(r, name);
+	}
+
+	/**
+	 * An executor for a group of tasks that are waited for together (e.g. the
+	 * parts of a transfer), to be shut down once done. It uses a thread per
+	 * task if the virtual threads are enabled, a pool of the given size
+	 * otherwise.
+	 */
+	public static ExecutorService newExecutor(int threads, String name) {
+		if (virtualThreads)
+			return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 1).factory());
+		return Executors.newFixedThreadPool(threads);
+	}
+
+	private static synchronized Executor getExecutor() {
+		if (virtualThreads) {
+			if (virtualExecutor == null)
+				virtualExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("async-virtual-", 1)
+						.factory());
+			return virtualExecutor;
+		}
+
+		if (executor == null) {
+			executor = new ThreadPoolExecutor(maxThreads, maxThreads, KEEP_ALIVE, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "async-" + count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	/**
+	 * Runs the task on the shared executor. The future fails with the
+	 * exception thrown by the task, if any. Completing the future from outside
+	 * (e.g. cancelling it or with {@link CompletableFuture#orTimeout(long, TimeUnit)})
+	 * interrupts the task, or skips it if it isn't started yet.
+	 */
+	public static <T> CompletableFuture<T> supply(final Callable<T> task) {
+		final CompletableFuture<T> res = new CompletableFuture<T>();
+		final long submittedAt = System.currentTimeMillis();
+		submitted.incrementAndGet();
+
+		AsyncExecutor.queued.incrementAndGet();
+
+		final boolean virtual = virtualThreads;
+		getExecutor().execute(() -> {
+			if (virtual) {
+				try {
+					virtualPermits.acquire();
+				} catch (InterruptedException e) {
+					AsyncExecutor.queued.decrementAndGet();
+					failed.incrementAndGet();
+					res.completeExceptionally(e);
+					return;
+				}
+			}
+			AsyncExecutor.queued.decrementAndGet();
+			if (res.isDone()) {
+				failed.incrementAndGet();
+				if (virtual)
+					virtualPermits.release();
+				return;
+			}
+			active.incrementAndGet();
+			long init = System.currentTimeMillis();
+			waitTime.addAndGet(init - submittedAt);
+
+			// the thread goes back to the pool afterwards, so it's interrupted
+			// only while running this task
+			final Thread worker = Thread.currentThread();
+			final boolean[] running = { true };
+			final boolean[] interrupted = { false };
+			res.whenComplete((value, error) -> {
+				synchronized (running) {
+					if (running[0]) {
+						interrupted[0] = true;
+						worker.interrupt();
+					}
+				}
+			});
+
+			T value = null;
+			Throwable error = null;
+			try {
+				value = task.call();
+			} catch (Throwable t) {
+				error = t;
+			} finally {
+				synchronized (running) {
+					running[0] = false;
+					if (interrupted[0])
+						Thread.interrupted();
+				}
+				runTime.addAndGet(System.currentTimeMillis() - init);
+				active.decrementAndGet();
+				if (virtual)
+					virtualPermits.release();
+			}
+
+			if (error == null) {
+				completed.incrementAndGet();
+				res.complete(value);
+			} else {
+				failed.incrementAndGet();
+				res.completeExceptionally(error);
+			}
+		});
+
+		return res;
+	}
+
+	/**
+	 * Waits for the future, throwing the exception that made it fail (instead
+	 * of wrapping it).
+	 */
+	public static <T> T get(CompletableFuture<T> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException | CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception)
+				throw (Exception) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits for all the futures, throwing the first error found (after all of
+	 * them are done).
+	 */
+	public static void getAll(Iterable<? extends CompletableFuture<?>> futures) throws Exception {
+		Exception error = null;
+		for (CompletableFuture<?> f : futures) {
+			try {
+				get(f);
+			} catch (Exception e) {
+				if (error == null)
+					error = e;
+				else
+					error.addSuppressed(e);
+			}
+		}
+		if (error != null)
+			throw error;
+	}
+
+	public static long getSubmitted() {
+		return submitted.get();
+	}
+
+	public static long getCompleted() {
+		return completed.get();
+	}
+
+	public static long getFailed() {
+		return failed.get();
+	}
+
+	public static int getQueued() {
+		return queued.get();
+	}
+
+	public static int getActive() {
+		return active.get();
+	}
+
+	/**
+	 * The average time (in ms) spent by the tasks waiting for a thread.
+	 */
+	public static long getAverageWaitTime() {
+		long done = completed.get() + failed.get();
+		return done == 0 ? 0 : waitTime.get() / done;
+	}
+
+	/**
+	 * The average time (in ms) spent by the tasks running.
+	 */
+	public static long getAverageRunTime() {
+		long done = completed.get() + failed.get();
+		return done == 0 ? 0 : runTime.get() / done;
+	}
+
+	public static String getStatistics() {
+		return String.format(
+				"%d tasks submitted, %d completed, %d failed, %d running, %d queued, %d ms of wait and %d ms of run on average",
+				getSubmitted(), getCompleted(), getFailed(), getActive(), getQueued(), getAverageWaitTime(),
+				getAverageRunTime());
+	}
+
+	private static class Permits extends Semaphore {
+		private static final long serialVersionUID = 1L;
+
+		private Permits(int permits) {
+			super(permits, true);
+		}
+
+		private void reduce(int reduction) {
+			reducePermits(reduction);
+		}
+	}
+
+}
@@ -0,0 +1,86 @@
+package it.cloud.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Computes the SHA-256 hashes of the local files, in the same format used by
+ * sha256sum. The hashes are cached and computed again only if the size or the
+ * last modification time of a file change.
+ */
+public abstract class FileHash {
+
+	protected static final Logger logger = LoggerFactory.getLogger(FileHash.class);
+
+	private static final Map<String, Entry> cache = new HashMap<String, Entry>();
+
+	public static String sha256(String file) throws Exception {
+		return sha256(new File(file));
+	}
+
+	public static String sha256(File file) throws Exception {
+		String path = file.getAbsolutePath();
+		long size = file.length();
+		long lastModified = file.lastModified();
+
+		synchronized (cache) {
+			Entry e = cache.get(path);
+			if (e != null && e.size == size && e.lastModified == lastModified)
+				return e.hash;
+		}
+
+		String hash = computeSha256(file);
+
+		synchronized (cache) {
+			cache.put(path, new Entry(size, lastModified, hash));
+		}
+		return hash;
+	}
+
+	/**
+	 * Reads the whole file to compute its hash, without looking at the cache:
+	 * a file rewritten in place can keep the same size and modification time.
+	 */
+	public static String computeSha256(File file) throws Exception {
+		long init = System.currentTimeMillis();
+
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		try (InputStream in = new FileInputStream(file)) {
+			byte[] buf = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buf)) >= 0)
+				md.update(buf, 0, n);
+		}
+		String hash = toHex(md.digest());
+
+		logger.trace("SHA-256 of `{}` computed in {} ms.", file.getAbsolutePath(), System.currentTimeMillis() - init);
+		return hash;
+	}
+
+	public static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			sb.append(String.format("%02x", b & 0xff));
+		return sb.toString();
+	}
+
+	private static class Entry {
+		private final long size;
+		private final long lastModified;
+		private final String hash;
+
+		private Entry(long size, long lastModified, String hash) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+	}
+
+}
@@ -14,8 +14,15 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -354,20 +361,47 @@ public class JMeterTest {
 		if (localPath == null || remotePath == null || jmeterPath == null)
 			throw new RuntimeException("All the parameters are important and they cannot be null.");
 		
-		for (Instance i : runningInstances) {
-			Ssh.exec(i, String.format("mkdir -p %s", remotePath));
-			Ssh.sendFile(i, run.jmx.toString(), Paths.get(remotePath, run.jmx.getName()).toString());
-			for (String s : run.fileToBeSent)
-				Ssh.sendFile(i, Paths.get(localPath, s).toString(), Paths.get(remotePath, s).toString());
-		}
+		final Map<String, String> files = new LinkedHashMap<String, String>();
+		files.put(run.jmx.toString(), Paths.get(remotePath, run.jmx.getName()).toString());
+		for (String s : run.fileToBeSent)
+			files.put(Paths.get(localPath, s).toString(), Paths.get(remotePath, s).toString());
+		
+		List<CompletableFuture<?>> futures = new ArrayList<CompletableFuture<?>>();
+		
+		// syncFiles creates the remote folder too
+		for (Instance i : runningInstances)
+			futures.add(AsyncExecutor.supply(() -> Ssh.syncFiles(i, files)));
 		
-		ArrayList<Thread> threads = new ArrayList<Thread>();
+		AsyncExecutor.getAll(futures);
 		
+		// the output of JMeter isn't needed, and a dropped connection must not
+		// start the test again once it's running; all the clients must run at
+		// the same time, so they get their own threads instead of waiting for
+		// a free one in the shared executor
+		final String command = String.format("%s/bin/jmeter -n -t %s/%s", javaParameters != null ? "JVM_ARGS=\"" + javaParameters + "\" " + jmeterPath : jmeterPath, remotePath, run.jmx.getName());
+		List<Callable<Integer>> tests = new ArrayList<Callable<Integer>>();
 		for (Instance i : runningInstances)
-			threads.add(Ssh.execInBackground(i, String.format("%s/bin/jmeter -n -t %s/%s", javaParameters != null ? "JVM_ARGS=\"" + javaParameters + "\" " + jmeterPath : jmeterPath, remotePath, run.jmx.getName())));
+			tests.add(() -> Ssh.exec(i, command, LineConsumer.DISCARD, LineConsumer.DISCARD));
 		
-		for (Thread t : threads)
-			t.join();
+		ExecutorService executor = AsyncExecutor.newExecutor(runningInstances.size(), "jmeter");
+		try {
+			Exception error = null;
+			for (Future<Integer> f : executor.invokeAll(tests)) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+					if (error == null)
+						error = cause;
+					else
+						error.addSuppressed(cause);
+				}
+			}
+			if (error != null)
+				throw error;
+		} finally {
+			executor.shutdownNow();
+		}
 		
 		String[] filesToBeGet = new String[run.fileToBeGet.size()];
 		for (int i = 0; i < filesToBeGet.length; ++i)
@@ -0,0 +1,108 @@
+package it.cloud.utils;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receives the output of a command one line at a time, as soon as the line is
+ * available.
+ *
+ * Lines are pushed from the thread reading the stream, so a slow consumer
+ * slows down the reading as well: the pipe (or the SSH channel window) fills
+ * up and the command producing the output blocks until the consumer catches
+ * up. Nothing is buffered besides the line being read, so the memory used
+ * doesn't depend on how much output the command produces.
+ */
+public interface LineConsumer {
+
+	public void consume(String line) throws Exception;
+
+	/**
+	 * Throws the output away (it's still logged at the trace level).
+	 */
+	public static final LineConsumer DISCARD = new LineConsumer() {
+		@Override
+		public void consume(String line) {
+		}
+	};
+
+	/**
+	 * Keeps all the lines in memory, it can be shared among the threads reading
+	 * stdout and stderr.
+	 */
+	public static class Collector implements LineConsumer {
+		private final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+
+		@Override
+		public void consume(String line) {
+			lines.add(line);
+		}
+
+		public List<String> getLines() {
+			return lines;
+		}
+	}
+
+	/**
+	 * Reads a stream line by line in its own thread, pushing every line to a
+	 * consumer. If the consumer fails, the rest of the stream is drained
+	 * anyway so that the command isn't left blocked on a full pipe. The thread
+	 * is a virtual one if {@link AsyncExecutor#isVirtualThreads()}.
+	 */
+	public static class Pump implements Runnable {
+		private static final Logger logger = LoggerFactory.getLogger(Pump.class);
+
+		private final InputStream is;
+		private final LineConsumer consumer;
+		private Thread thread;
+		private volatile Exception exception = null;
+
+		public Pump(InputStream is, LineConsumer consumer) {
+			this.is = is;
+			this.consumer = consumer;
+		}
+
+		public void start() {
+			thread = AsyncExecutor.newThread(this, "pump");
+			thread.start();
+		}
+
+		public void run() {
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(is, Charset.defaultCharset()))) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					logger.trace(line);
+					if (exception == null) {
+						try {
+							consumer.consume(line);
+						} catch (Exception e) {
+							exception = e;
+						}
+					}
+				}
+			} catch (Exception e) {
+				if (exception == null)
+					exception = e;
+			}
+		}
+
+		/**
+		 * Waits for the whole stream to be consumed, throwing the first error
+		 * found while reading it or while consuming it.
+		 */
+		public void await() throws Exception {
+			thread.join();
+			if (exception != null)
+				throw exception;
+		}
+	}
+
+}
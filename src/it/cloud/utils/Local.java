@@ -1,9 +1,24 @@
 package it.cloud.utils;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 
+import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -11,65 +26,328 @@ public class Local {
 	
 	protected static final Logger logger = LoggerFactory.getLogger(Local.class);
 
+	/**
+	 * Runs the command collecting its output (stdout and stderr merged) as it
+	 * arrives, logged at the trace level. It isn't limited by
+	 * {@link #getMaxProcesses()}: the caller is already waiting for it, and
+	 * long jobs (e.g. a local JMeter run) mustn't queue each other.
+	 */
 	public static List<String> exec(String command) throws Exception {
-		final List<String> res = new ArrayList<String>();
-		
+		LineConsumer.Collector res = new LineConsumer.Collector();
+
+		int exitStatus = exec(command, res, res);
+
+		res.consume(String.format("exit-status: %d", exitStatus));
+		return res.getLines();
+	}
+
+	/**
+	 * Runs the command, pushing the lines of its output to the consumers as
+	 * they arrive. If the same consumer is used for both stdout and stderr,
+	 * the two streams are merged by the process itself, keeping the order of
+	 * the lines.
+	 *
+	 * @return the exit status of the command.
+	 */
+	public static int exec(String command, LineConsumer stdout, LineConsumer stderr) throws Exception {
 		long init = System.currentTimeMillis();
 		
 		ProcessBuilder pb = new ProcessBuilder(new String[] { "bash", "-c", command });
-		pb.redirectErrorStream(true);
+		boolean merged = stdout == stderr;
+		pb.redirectErrorStream(merged);
 
 		final Process p = pb.start();
 		
-		Thread in = new Thread() {
-			public void run() {
-				try (Scanner sc = new Scanner(p.getInputStream())) {
-					while (sc.hasNextLine()) {
-						String line = sc.nextLine();
-						logger.trace(line);
-						res.add(line);
-					}
-				}
-			}
-		};
+		LineConsumer.Pump in = new LineConsumer.Pump(p.getInputStream(), stdout);
 		in.start();
-		
-		Thread err = new Thread() {
-			public void run() {
-				try (Scanner sc = new Scanner(p.getErrorStream())) {
-					while (sc.hasNextLine()) {
-						String line = sc.nextLine();
-						logger.trace(line);
-						res.add(line);
-					}
-				}
-			}
-		};
+
+		LineConsumer.Pump err = new LineConsumer.Pump(p.getErrorStream(), merged ? LineConsumer.DISCARD : stderr);
 		err.start();
 
-		in.join();
-		err.join();
-		
-		res.add(String.format("exit-status: %d", p.waitFor()));
-		
+		in.await();
+		err.await();
+
+		int res = p.waitFor();
+
 		long duration = System.currentTimeMillis() - init;
 		logger.debug("Executed `{}` on {} in {}", command, "localhost", Utilities.durationToString(duration));
 		return res;
 	}
-	
+
+	/**
+	 * Runs the command on the shared {@link AsyncExecutor}.
+	 *
+	 * @return the exit status of the command.
+	 */
+	public static CompletableFuture<Integer> execAsync(final String command, final LineConsumer stdout,
+			final LineConsumer stderr) {
+		return AsyncExecutor.supply(() -> exec(command, stdout, stderr));
+	}
+
+	public static final int DEFAULT_MAX_PROCESSES = Runtime.getRuntime().availableProcessors();
+
+	private static int maxProcesses = DEFAULT_MAX_PROCESSES;
+	private static int running = 0;
+	private static final Queue<Runnable> pending = new ArrayDeque<Runnable>();
+
+	public static synchronized int getMaxProcesses() {
+		return maxProcesses;
+	}
+
+	/**
+	 * Sets how many processes started with {@link #run(String, File, File)}
+	 * can run at the same time, the others wait for their turn.
+	 */
+	public static void setMaxProcesses(int maxProcesses) {
+		if (maxProcesses <= 0)
+			throw new IllegalArgumentException("There should be at least one process.");
+		synchronized (Local.class) {
+			Local.maxProcesses = maxProcesses;
+		}
+		logger.debug("Running up to {} local processes at the same time now...", maxProcesses);
+
+		while (true) {
+			Runnable next;
+			synchronized (Local.class) {
+				if (running >= Local.maxProcesses || pending.isEmpty())
+					return;
+				running++;
+				next = pending.poll();
+			}
+			next.run();
+		}
+	}
+
+	private static void schedule(Runnable start) {
+		synchronized (Local.class) {
+			if (running >= maxProcesses) {
+				pending.add(start);
+				return;
+			}
+			running++;
+		}
+		start.run();
+	}
+
+	private static void finished() {
+		Runnable next;
+		synchronized (Local.class) {
+			next = pending.poll();
+			if (next == null) {
+				running--;
+				return;
+			}
+		}
+		next.run();
+	}
+
+	public static class Result {
+		public final String command;
+		public final int exitStatus;
+		/**
+		 * How long (in ms) the command waited for its turn.
+		 */
+		public final long waitTime;
+		/**
+		 * How long (in ms) the command ran.
+		 */
+		public final long duration;
+		public final File stdout;
+		public final File stderr;
+		/**
+		 * The output (stdout and stderr merged) if it wasn't sent to files,
+		 * null otherwise.
+		 */
+		public final List<String> output;
+
+		private Result(String command, int exitStatus, long waitTime, long duration, File stdout, File stderr,
+				List<String> output) {
+			this.command = command;
+			this.exitStatus = exitStatus;
+			this.waitTime = waitTime;
+			this.duration = duration;
+			this.stdout = stdout;
+			this.stderr = stderr;
+			this.output = output;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("`%s`: exit-status %d in %d ms (after %d ms of wait)", command, exitStatus, duration,
+					waitTime);
+		}
+	}
+
+	/**
+	 * Runs the command with its output redirected to the files by the process
+	 * itself, so that no thread is needed to read it: the future completes
+	 * when the process exits. At most {@link #getMaxProcesses()} commands run
+	 * at the same time, the others are queued (without holding any thread).
+	 *
+	 * @param stdout
+	 *            the file for the output, null to discard it.
+	 * @param stderr
+	 *            the file for the errors, null to discard them. If it's the
+	 *            same file of stdout the two are merged.
+	 */
+	public static CompletableFuture<Result> run(final String command, final File stdout, final File stderr) {
+		final CompletableFuture<Result> res = new CompletableFuture<Result>();
+		final long submitted = System.currentTimeMillis();
+
+		schedule(() -> start(command, stdout, stderr, submitted, res));
+
+		return res;
+	}
+
+	private static void start(final String command, final File stdout, final File stderr, final long submitted,
+			final CompletableFuture<Result> res) {
+		final long init = System.currentTimeMillis();
+
+		Process p;
+		try {
+			ProcessBuilder pb = new ProcessBuilder(new String[] { "bash", "-c", command });
+			pb.redirectOutput(stdout == null ? Redirect.DISCARD : Redirect.to(stdout));
+			if (stderr != null && stderr.equals(stdout))
+				pb.redirectErrorStream(true);
+			else
+				pb.redirectError(stderr == null ? Redirect.DISCARD : Redirect.to(stderr));
+
+			p = pb.start();
+		} catch (Throwable t) {
+			// nothing is running, the turn can go to the next one
+			finished();
+			res.completeExceptionally(t);
+			return;
+		}
+
+		// the turn is given back only when the process is gone, whatever
+		// happens from now on
+		p.onExit().whenComplete((process, t) -> {
+			finished();
+			if (t != null) {
+				res.completeExceptionally(t);
+				return;
+			}
+			long duration = System.currentTimeMillis() - init;
+			logger.debug("Executed `{}` on {} in {}", command, "localhost", Utilities.durationToString(duration));
+			res.complete(new Result(command, process.exitValue(), init - submitted, duration, stdout, stderr, null));
+		});
+
+		try {
+			p.getOutputStream().close();
+		} catch (Throwable t) {
+			res.completeExceptionally(t);
+			p.destroyForcibly();
+		}
+	}
+
+	/**
+	 * Like {@link #run(String, File, File)}, but the output (stdout and stderr
+	 * merged) is collected in the result.
+	 */
+	public static CompletableFuture<Result> run(final String command) {
+		final File output;
+		try {
+			output = File.createTempFile("local-", ".out");
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+
+		CompletableFuture<Result> res = run(command, output, output).thenApply(r -> {
+			try {
+				return new Result(r.command, r.exitStatus, r.waitTime, r.duration, null, null,
+						FileUtils.readLines(output, Charset.defaultCharset()));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		res.whenComplete((r, t) -> output.delete());
+		return res;
+	}
+
+	/**
+	 * Expands the pattern as bash would do: the wildcards match inside a
+	 * single component of the path, the hidden files are matched only by the
+	 * components starting with a dot and the matches are sorted.
+	 *
+	 * @return the paths of the existing files (or folders) matching the
+	 *         pattern, relative if the pattern is.
+	 */
+	public static List<String> glob(String pattern) throws IOException {
+		List<String> res = new ArrayList<String>();
+		res.add(pattern.startsWith("/") ? "/" : "");
+
+		// the components without wildcards (. included) are kept as written,
+		// so that the matches start with the same prefix as the pattern
+		for (String part : pattern.split("/")) {
+			if (part.isEmpty())
+				continue;
+
+			List<String> next = new ArrayList<String>();
+			if (!isPattern(part)) {
+				for (String prefix : res)
+					next.add(join(prefix, part));
+			} else {
+				PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + part);
+				for (String prefix : res) {
+					Path dir = Paths.get(prefix.isEmpty() ? "." : prefix);
+					if (!Files.isDirectory(dir))
+						continue;
+
+					List<String> names = new ArrayList<String>();
+					try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+						for (Path p : ds) {
+							String name = p.getFileName().toString();
+							if (name.startsWith(".") && !part.startsWith("."))
+								continue;
+							if (matcher.matches(Paths.get(name)))
+								names.add(name);
+						}
+					}
+					Collections.sort(names);
+					for (String name : names)
+						next.add(join(prefix, name));
+				}
+			}
+			res = next;
+		}
+
+		List<String> existing = new ArrayList<String>();
+		for (String s : res)
+			if (!s.isEmpty() && new File(s).exists())
+				existing.add(s);
+		return existing;
+	}
+
+	private static boolean isPattern(String s) {
+		return s.contains("*") || s.contains("?") || s.contains("[");
+	}
+
+	private static String join(String prefix, String name) {
+		if (prefix.isEmpty())
+			return name;
+		if (prefix.endsWith("/"))
+			return prefix + name;
+		return prefix + "/" + name;
+	}
+
+	/**
+	 * @deprecated use execAsync, that reports the result and the errors.
+	 */
+	@Deprecated
 	public static Thread execInBackground(String command)
 			throws Exception {
 		final String fcommand = command;
 
-		Thread t = new Thread() {
+		Thread t = AsyncExecutor.newThread(new Runnable() {
 			public void run() {
 				try {
-					exec(fcommand);
+					exec(fcommand, LineConsumer.DISCARD, LineConsumer.DISCARD);
 				} catch (Exception e) {
 					logger.error("Error while executing the command.", e);
 				}
 			}
-		};
+		}, "local-exec");
 		t.start();
 		return t;
 	}
@@ -0,0 +1,203 @@
+package it.cloud.utils;
+
+import java.io.FileNotFoundException;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides if and when a failed operation is tried again: the delay between the
+ * attempts grows exponentially (with some random jitter, so that many clients
+ * failing together don't retry all at the same time), the errors that can't go
+ * away by themselves (e.g. a wrong password) aren't retried at all, and no
+ * attempt is started after the deadline.
+ *
+ * Every attempt is reported to the {@link Listener}, that by default logs it
+ * together with how long it took. A policy can't be changed once created (so
+ * that e.g. {@link #DEFAULT} can be shared), {@link #withListener(Listener)}
+ * gives a copy with another listener.
+ */
+public class RetryPolicy {
+
+	protected static final Logger logger = LoggerFactory.getLogger(RetryPolicy.class);
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+	public static final long DEFAULT_INITIAL_DELAY = 1000;
+	public static final long DEFAULT_MAX_DELAY = 10000;
+	public static final double DEFAULT_MULTIPLIER = 2.0;
+	public static final long DEFAULT_DEADLINE = 2 * 60 * 1000;
+
+	public static final RetryPolicy DEFAULT = new RetryPolicy(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_DELAY,
+			DEFAULT_MAX_DELAY, DEFAULT_MULTIPLIER, DEFAULT_DEADLINE);
+
+	/**
+	 * Never tries again.
+	 */
+	public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 1.0, 0);
+
+	private final int maxAttempts;
+	private final long initialDelay;
+	private final long maxDelay;
+	private final double multiplier;
+	private final long deadline;
+	private final Random random = new Random();
+
+	private final Listener listener;
+
+	/**
+	 * @param maxAttempts
+	 *            how many times the operation is tried at most.
+	 * @param initialDelay
+	 *            the delay (in ms) after the first failure.
+	 * @param maxDelay
+	 *            the maximum delay (in ms) between two attempts.
+	 * @param multiplier
+	 *            how much the delay grows after each failure.
+	 * @param deadline
+	 *            the time (in ms) after which no attempt is started anymore,
+	 *            counting from the start of the first one.
+	 */
+	public RetryPolicy(int maxAttempts, long initialDelay, long maxDelay, double multiplier, long deadline) {
+		this(maxAttempts, initialDelay, maxDelay, multiplier, deadline, Listener.LOG);
+	}
+
+	private RetryPolicy(int maxAttempts, long initialDelay, long maxDelay, double multiplier, long deadline,
+			Listener listener) {
+		if (maxAttempts < 1)
+			throw new IllegalArgumentException("There should be at least one attempt.");
+		this.maxAttempts = maxAttempts;
+		this.initialDelay = initialDelay;
+		this.maxDelay = maxDelay;
+		this.multiplier = multiplier;
+		this.deadline = deadline;
+		this.listener = listener;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public long getDeadline() {
+		return deadline;
+	}
+
+	public Listener getListener() {
+		return listener;
+	}
+
+	/**
+	 * @return a copy of this policy reporting the attempts to the listener
+	 *         (or logging them, if it's null).
+	 */
+	public RetryPolicy withListener(Listener listener) {
+		return new RetryPolicy(maxAttempts, initialDelay, maxDelay, multiplier, deadline,
+				listener == null ? Listener.LOG : listener);
+	}
+
+	/**
+	 * Tells if the error could go away by trying again. Authentication
+	 * failures, missing files, wrong arguments and interruptions are
+	 * considered permanent, everything else (refused connections, timeouts,
+	 * broken transports, ...) transient.
+	 */
+	public boolean isTransient(Throwable t) {
+		for (Throwable c = t; c != null; c = c.getCause()) {
+			if (c instanceof PermanentFailure || c instanceof InterruptedException
+					|| c instanceof FileNotFoundException || c instanceof UnknownHostException
+					|| c instanceof IllegalArgumentException || c instanceof UnsupportedOperationException)
+				return false;
+			String name = c.getClass().getName();
+			if (name.equals("net.schmizz.sshj.userauth.UserAuthException"))
+				return false;
+			String message = c.getMessage();
+			if (name.equals("com.jcraft.jsch.JSchException") && message != null
+					&& (message.startsWith("Auth fail") || message.startsWith("Auth cancel")
+							|| message.startsWith("USERAUTH fail")))
+				return false;
+			if (c.getCause() == c)
+				break;
+		}
+		return true;
+	}
+
+	/**
+	 * The delay before the given attempt (starting from 2), picked at random
+	 * between half and all of the exponential backoff.
+	 */
+	public long getDelay(int attempt) {
+		double delay = initialDelay * Math.pow(multiplier, attempt - 2);
+		delay = Math.min(delay, maxDelay);
+		synchronized (random) {
+			return (long) (delay / 2 + random.nextDouble() * delay / 2);
+		}
+	}
+
+	public <T> T run(String operation, Callable<T> callable) throws Exception {
+		long init = System.currentTimeMillis();
+		int attempt = 0;
+		while (true) {
+			++attempt;
+			long start = System.currentTimeMillis();
+			try {
+				T res = callable.call();
+				listener.attempted(operation, attempt, System.currentTimeMillis() - start, null);
+				return res;
+			} catch (Exception e) {
+				listener.attempted(operation, attempt, System.currentTimeMillis() - start, e);
+
+				Exception cause = e instanceof PermanentFailure && e.getCause() instanceof Exception
+						? (Exception) e.getCause() : e;
+				if (attempt >= maxAttempts || !isTransient(e))
+					throw cause;
+
+				long delay = getDelay(attempt + 1);
+				if (System.currentTimeMillis() + delay - init > deadline) {
+					logger.debug("Giving up on {}, the deadline of {} would be passed.", operation,
+							Utilities.durationToString(deadline));
+					throw cause;
+				}
+
+				logger.info("Trying again in {} ms...", delay);
+				Thread.sleep(delay);
+			}
+		}
+	}
+
+	/**
+	 * Wraps an error to make sure that the operation isn't tried again, e.g.
+	 * because it already had side effects.
+	 */
+	public static class PermanentFailure extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		public PermanentFailure(Exception cause) {
+			super(cause);
+		}
+	}
+
+	/**
+	 * Gets notified of every attempt, failed or not.
+	 */
+	public static interface Listener {
+		public void attempted(String operation, int attempt, long duration, Exception error);
+
+		public static final Listener LOG = new Listener() {
+			@Override
+			public void attempted(String operation, int attempt, long duration, Exception error) {
+				if (error == null) {
+					if (attempt > 1)
+						logger.debug("Attempt {} of {} succeeded in {} ms.", attempt, operation, duration);
+					else
+						logger.trace("Attempt {} of {} succeeded in {} ms.", attempt, operation, duration);
+				} else {
+					logger.debug("Attempt {} of {} failed in {} ms: {}", attempt, operation, duration,
+							error.getCause() != null && error instanceof PermanentFailure ? error.getCause() : error);
+				}
+			}
+		};
+	}
+
+}
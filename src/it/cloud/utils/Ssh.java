@@ -1,10 +1,50 @@
 package it.cloud.utils;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.Method;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,8 +52,15 @@ import org.slf4j.LoggerFactory;
 import it.cloud.Configuration;
 import it.cloud.Instance;
 import it.cloud.VirtualMachine;
+import it.cloud.utils.ssh.ConnectionPool;
 import it.cloud.utils.ssh.FakeSsh;
+import it.cloud.utils.ssh.Jsch;
+import it.cloud.utils.ssh.LocalSsh;
+import it.cloud.utils.ssh.MatchingFilesSsh;
+import it.cloud.utils.ssh.SshProvider;
 import it.cloud.utils.ssh.Sshj;
+import it.cloud.utils.ssh.StreamHandler;
+import it.cloud.utils.ssh.StreamingSsh;
 
 public abstract class Ssh {
 
@@ -42,7 +89,209 @@ public abstract class Ssh {
 		this(inst.getIp(), inst.getSshUser(), inst.getSshPassword(), inst.getKey().toString());
 	}
 
-	public abstract List<String> exec(String command) throws Exception;
+	/**
+	 * @return the host of the address, that can also be given as host:port
+	 *         (e.g. for a server not listening on {@link #SSH_PORT}).
+	 */
+	public static String getHost(String address) {
+		int i = address.indexOf(':');
+		if (i < 0 || i != address.lastIndexOf(':'))
+			return address;
+		return address.substring(0, i);
+	}
+
+	/**
+	 * @return the port of the address, {@link #SSH_PORT} if there isn't any.
+	 */
+	public static int getPort(String address) {
+		int i = address.indexOf(':');
+		if (i < 0 || i != address.lastIndexOf(':'))
+			return SSH_PORT;
+		return Integer.parseInt(address.substring(i + 1));
+	}
+
+	protected ConnectionPool.Key getPoolKey() {
+		return new ConnectionPool.Key(ip, user, password, key, compression == Compression.TRANSPORT);
+	}
+
+	/**
+	 * How the commands are run on the remote machine: SHELL types them in an
+	 * interactive shell with a terminal (so the login environment is there,
+	 * but stderr is merged with stdout and the exit status is lost), EXEC runs
+	 * them in an exec channel, keeping stdout and stderr apart and returning
+	 * the exit status. In the EXEC mode the login environment is captured once
+	 * for each pooled connection and then set before every command.
+	 */
+	public static enum ExecMode {
+		SHELL, EXEC
+	}
+
+	private static ExecMode execMode = ExecMode.SHELL;
+
+	public static ExecMode getExecMode() {
+		return execMode;
+	}
+
+	public static void setExecMode(ExecMode execMode) {
+		Ssh.execMode = execMode;
+		logger.debug("Using the {} mode for the commands now...", execMode);
+	}
+
+	public static final String ENVIRONMENT_FLAG = "AMBIENTE_TUTTO_TUTTO";
+
+	/**
+	 * Prints the environment of an interactive login shell, as a script that
+	 * can be used to set it again.
+	 */
+	protected static final String ENVIRONMENT_COMMAND = String.format(
+			"bash -lic 'echo %s; export -p' 2>/dev/null < /dev/null", ENVIRONMENT_FLAG);
+
+	private static final String[] ENVIRONMENT_EXCLUDED = { "_", "PWD", "OLDPWD", "SHLVL", "SHELLOPTS", "BASHOPTS",
+			"SSH_CLIENT", "SSH_CONNECTION", "SSH_TTY" };
+
+	protected static String parseEnvironment(List<String> lines) {
+		StringBuilder sb = new StringBuilder();
+		boolean considerLine = false;
+		for (String line : lines) {
+			if (!considerLine) {
+				considerLine = line.equals(ENVIRONMENT_FLAG);
+				continue;
+			}
+			boolean excluded = false;
+			for (String name : ENVIRONMENT_EXCLUDED)
+				if (line.startsWith("declare -x " + name + "=") || line.equals("declare -x " + name))
+					excluded = true;
+			if (!excluded)
+				sb.append(line).append("\n");
+		}
+		return sb.toString();
+	}
+
+	protected static String withEnvironment(String environment, String command) {
+		if (environment == null || environment.length() == 0)
+			return command;
+		return "bash -c " + quote(environment + command);
+	}
+
+	public static String quote(String s) {
+		return "'" + s.replace("'", "'\\''") + "'";
+	}
+
+	/**
+	 * Runs the command, pushing the lines of its output to the consumers as
+	 * they arrive. Implementations that can't tell stdout and stderr apart
+	 * send everything to stdout.
+	 * 
+	 * @return the exit status of the command, or null if it isn't known.
+	 */
+	public abstract Integer exec(String command, LineConsumer stdout, LineConsumer stderr) throws Exception;
+
+	public List<String> exec(String command) throws Exception {
+		LineConsumer.Collector res = new LineConsumer.Collector();
+		exec(command, res, res);
+		return res.getLines();
+	}
+
+	/**
+	 * The output and the exit status of one of the commands of a batch.
+	 */
+	public static class BatchResult {
+		public final String command;
+		public final List<String> output = new ArrayList<String>();
+		public Integer exitStatus = null;
+
+		private BatchResult(String command) {
+			this.command = command;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("`%s`: exit-status %s, %d line%s of output", command, exitStatus, output.size(),
+					output.size() == 1 ? "" : "s");
+		}
+	}
+
+	public static final String BATCH_FLAG = "LOTTO_TUTTO_TUTTO";
+
+	/**
+	 * Builds a single line running all the commands one after the other in the
+	 * same shell (so e.g. a cd affects the following commands), each framed by
+	 * markers with its index and exit status. The commands are base64 encoded,
+	 * so that they can contain anything (quotes, newlines, ...), and they're
+	 * eval'ed, so that a syntax error only breaks its own command.
+	 */
+	private static String getBatchCommand(List<String> commands, String flag) {
+		StringBuilder sb = new StringBuilder("{ ");
+		for (int i = 0; i < commands.size(); ++i) {
+			String encoded = Base64.getEncoder().encodeToString(commands.get(i).getBytes(StandardCharsets.UTF_8));
+			sb.append(String.format("echo %s:B:%d; eval \"$(echo %s | base64 -d)\"; echo %s:E:%d:$?; ", flag, i,
+					encoded, flag, i));
+		}
+		sb.append("} < /dev/null 2>&1");
+		return sb.toString();
+	}
+
+	/**
+	 * Splits the output of a batch among its commands. The markers are looked
+	 * for anywhere in the line, as the output of a command may not end with a
+	 * new line.
+	 */
+	private static class BatchParser implements LineConsumer {
+		private final List<BatchResult> results;
+		private final String flag;
+		private BatchResult current = null;
+
+		private BatchParser(List<BatchResult> results, String flag) {
+			this.results = results;
+			this.flag = flag;
+		}
+
+		@Override
+		public void consume(String line) {
+			int i = line.indexOf(flag + ":");
+			if (i < 0) {
+				if (current != null)
+					current.output.add(line);
+				return;
+			}
+			if (i > 0 && current != null)
+				current.output.add(line.substring(0, i));
+
+			String[] marker = line.substring(i + flag.length() + 1).split(":");
+			try {
+				int index = Integer.parseInt(marker[1].trim());
+				if (marker[0].equals("B")) {
+					current = results.get(index);
+				} else if (marker[0].equals("E") && marker.length > 2) {
+					results.get(index).exitStatus = Integer.valueOf(marker[2].trim());
+					current = null;
+				}
+			} catch (RuntimeException e) {
+				// not one of our markers (e.g. the echo of the command in a
+				// shell), so it's just output
+				if (current != null)
+					current.output.add(line.substring(i));
+			}
+		}
+	}
+
+	/**
+	 * Runs all the commands through a single session, one after the other,
+	 * getting back the output (stdout and stderr together) and the exit status
+	 * of each of them. If a command makes the shell exit, it and the following
+	 * ones get a null exit status.
+	 */
+	public List<BatchResult> execBatch(List<String> commands) throws Exception {
+		List<BatchResult> res = new ArrayList<BatchResult>();
+		for (String command : commands)
+			res.add(new BatchResult(command));
+		if (commands.size() == 0)
+			return res;
+
+		BatchParser parser = new BatchParser(res, BATCH_FLAG);
+		exec(getBatchCommand(commands, BATCH_FLAG), parser, parser);
+		return res;
+	}
 
 	public abstract void receiveFile(String lfile, String rfile) throws Exception;
 
@@ -57,72 +306,235 @@ public abstract class Ssh {
 		return exec(inst.getIp(), inst.getSshUser(), inst.getSshPassword(), inst.getKey().toString(), command);
 	}
 	
-	public static final int MAX_ATTEMPTS = 5;
+	public static final int MAX_ATTEMPTS = RetryPolicy.DEFAULT_MAX_ATTEMPTS;
 
-	@SuppressWarnings("unchecked")
-	public static List<String> exec(String ip, String user, String password, String key, String command)
-			throws Exception {
-		List<String> res = null;
+	private static volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+
+	public static RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
 
+	public static void setRetryPolicy(RetryPolicy retryPolicy) {
+		if (retryPolicy == null)
+			throw new IllegalArgumentException("The retry policy cannot be null.");
+		Ssh.retryPolicy = retryPolicy;
+	}
+
+	public static List<String> exec(String ip, String user, String password, String key, final String command)
+			throws Exception {
 		long init = System.currentTimeMillis();
 		
-		Constructor<? extends Ssh> c = usedImplementation.getConstructor(String.class, String.class, String.class, String.class);
-		Ssh instance = c.newInstance(ip, user, password, key);
-		Method m = usedImplementation.getMethod("exec", String.class);
-		boolean goOn = true;
-		int attempt = 0;
-		while (goOn) {
-			try {
-				++attempt;
-				res = (List<String>) m.invoke(instance, command);
-				goOn = false;
-			} catch (Exception e) {
-				if (attempt >= MAX_ATTEMPTS)
+		final Ssh instance = getProvider().newInstance(ip, user, password, key);
+		List<String> res = retryPolicy.run(String.format("`%s` on %s", command, ip), new Callable<List<String>>() {
+			@Override
+			public List<String> call() throws Exception {
+				return instance.exec(command);
+			}
+		});
+
+		long duration = System.currentTimeMillis() - init;
+		logger.debug("Executed `{}` on {} in {}", command, ip, Utilities.durationToString(duration));
+		return res;
+	}
+
+	public static List<BatchResult> execBatch(String ip, VirtualMachine vm, List<String> commands) throws Exception {
+		return execBatch(ip, vm.getParameter("SSH_USER"), vm.getParameter("SSH_PASS"),
+				Configuration.getPathToFile(vm.getParameter("KEYPAIR_NAME").concat(".pem")).toString(), commands);
+	}
+
+	public static List<BatchResult> execBatch(Instance inst, List<String> commands) throws Exception {
+		return execBatch(inst.getIp(), inst.getSshUser(), inst.getSshPassword(), inst.getKey().toString(), commands);
+	}
+
+	/**
+	 * Like {@link #execBatch(List)}, with the same retries of
+	 * {@link #exec(String, String, String, String, String, LineConsumer, LineConsumer)}.
+	 */
+	public static List<BatchResult> execBatch(String ip, String user, String password, String key,
+			List<String> commands) throws Exception {
+		List<BatchResult> res = new ArrayList<BatchResult>();
+		for (String command : commands)
+			res.add(new BatchResult(command));
+		if (commands.size() == 0)
+			return res;
+
+		BatchParser parser = new BatchParser(res, BATCH_FLAG);
+		exec(ip, user, password, key, getBatchCommand(commands, BATCH_FLAG), parser, parser);
+		return res;
+	}
+
+	public static Integer exec(String ip, VirtualMachine vm, String command, LineConsumer stdout, LineConsumer stderr)
+			throws Exception {
+		return exec(ip, vm.getParameter("SSH_USER"), vm.getParameter("SSH_PASS"),
+				Configuration.getPathToFile(vm.getParameter("KEYPAIR_NAME").concat(".pem")).toString(), command,
+				stdout, stderr);
+	}
+
+	public static Integer exec(Instance inst, String command, LineConsumer stdout, LineConsumer stderr)
+			throws Exception {
+		return exec(inst.getIp(), inst.getSshUser(), inst.getSshPassword(), inst.getKey().toString(), command,
+				stdout, stderr);
+	}
+
+	/**
+	 * Like {@link #exec(String, String, String, String, String)}, but the
+	 * output is streamed to the consumers instead of being kept in memory. The
+	 * command is tried again only if it failed before producing any output,
+	 * so the consumers never get the same lines twice.
+	 */
+	public static Integer exec(String ip, String user, String password, String key, final String command,
+			LineConsumer stdout, LineConsumer stderr) throws Exception {
+		long init = System.currentTimeMillis();
+
+		final Ssh instance = getProvider().newInstance(ip, user, password, key);
+		final CountingConsumer out = new CountingConsumer(stdout);
+		final CountingConsumer err = new CountingConsumer(stderr);
+		Integer res = retryPolicy.run(String.format("`%s` on %s", command, ip), new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				try {
+					return instance.exec(command, out, err);
+				} catch (Exception e) {
+					if (out.lines > 0 || err.lines > 0)
+						throw new RetryPolicy.PermanentFailure(e);
 					throw e;
-				logger.info("Trying again in 10 seconds...");
-				try { Thread.sleep(10000); } catch (Exception ex) { }
+				}
 			}
-		}
+		});
 
 		long duration = System.currentTimeMillis() - init;
 		logger.debug("Executed `{}` on {} in {}", command, ip, Utilities.durationToString(duration));
 		return res;
 	}
 
+	private static class CountingConsumer implements LineConsumer {
+		private final LineConsumer consumer;
+		private volatile long lines = 0;
+
+		private CountingConsumer(LineConsumer consumer) {
+			this.consumer = consumer;
+		}
+
+		@Override
+		public void consume(String line) throws Exception {
+			lines++;
+			consumer.consume(line);
+		}
+	}
+
+	/**
+	 * @deprecated use execAsync, that reports the result and the errors.
+	 */
+	@Deprecated
 	public static Thread execInBackground(String ip, VirtualMachine vm, String command) throws Exception {
 		return execInBackground(ip, vm.getParameter("SSH_USER"), vm.getParameter("SSH_PASS"),
 				Configuration.getPathToFile(vm.getParameter("KEYPAIR_NAME").concat(".pem")).toString(), command);
 	}
 
+	/**
+	 * @deprecated use execAsync, that reports the result and the errors.
+	 */
+	@Deprecated
 	public static Thread execInBackground(Instance inst, String command) throws Exception {
 		return execInBackground(inst.getIp(), inst.getSshUser(), inst.getSshPassword(), inst.getKey().toString(),
 				command);
 	}
 
+	/**
+	 * @deprecated use execAsync, that reports the result and the errors.
+	 */
+	@Deprecated
 	public static Thread execInBackground(String ip, String user, String password, String key, String command)
 			throws Exception {
-		Constructor<? extends Ssh> c = usedImplementation.getConstructor(String.class, String.class, String.class, String.class);
-		Ssh instance = c.newInstance(ip, user, password, key);
-		Method m = usedImplementation.getMethod("execInBackground", String.class);
-		return (Thread) m.invoke(instance, command);
+		Ssh instance = getProvider().newInstance(ip, user, password, key);
+		return instance.execInBackground(command);
 	}
 
+	/**
+	 * @deprecated use execAsync, that reports the result and the errors.
+	 */
+	@Deprecated
 	public Thread execInBackground(String command) throws Exception {
 		final String fcommand = command;
 
-		Thread t = new Thread() {
+		Thread t = AsyncExecutor.newThread(new Runnable() {
 			public void run() {
 				try {
-					exec(fcommand);
+					exec(fcommand, LineConsumer.DISCARD, LineConsumer.DISCARD);
 				} catch (Exception e) {
 					logger.error("Error while executing the command.", e);
 				}
 			}
-		};
+		}, "ssh-exec");
 		t.start();
 		return t;
 	}
 
+	public static CompletableFuture<List<String>> execAsync(String ip, VirtualMachine vm, String command) {
+		return execAsync(ip, vm.getParameter("SSH_USER"), vm.getParameter("SSH_PASS"),
+				Configuration.getPathToFile(vm.getParameter("KEYPAIR_NAME").concat(".pem")).toString(), command);
+	}
+
+	public static CompletableFuture<List<String>> execAsync(Instance inst, String command) {
+		return execAsync(inst.getIp(), inst.getSshUser(), inst.getSshPassword(), inst.getKey().toString(), command);
+	}
+
+	/**
+	 * Runs the command on the shared {@link AsyncExecutor}, with the same
+	 * retries of {@link #exec(String, String, String, String, String)}.
+	 */
+	public static CompletableFuture<List<String>> execAsync(final String ip, final String user,
+			final String password, final String key, final String command) {
+		return AsyncExecutor.supply(() -> exec(ip, user, password, key, command));
+	}
+
+	public static CompletableFuture<Integer> execAsync(Instance inst, String command, LineConsumer stdout,
+			LineConsumer stderr) {
+		return execAsync(inst.getIp(), inst.getSshUser(), inst.getSshPassword(), inst.getKey().toString(), command,
+				stdout, stderr);
+	}
+
+	public static CompletableFuture<Integer> execAsync(final String ip, final String user, final String password,
+			final String key, final String command, final LineConsumer stdout, final LineConsumer stderr) {
+		return AsyncExecutor.supply(() -> exec(ip, user, password, key, command, stdout, stderr));
+	}
+
+	public static CompletableFuture<Void> receiveFileAsync(String ip, VirtualMachine vm, String lfile, String rfile) {
+		return receiveFileAsync(ip, vm.getParameter("SSH_USER"), vm.getParameter("SSH_PASS"),
+				Configuration.getPathToFile(vm.getParameter("KEYPAIR_NAME").concat(".pem")).toString(), lfile, rfile);
+	}
+
+	public static CompletableFuture<Void> receiveFileAsync(Instance inst, String lfile, String rfile) {
+		return receiveFileAsync(inst.getIp(), inst.getSshUser(), inst.getSshPassword(), inst.getKey().toString(),
+				lfile, rfile);
+	}
+
+	public static CompletableFuture<Void> receiveFileAsync(final String ip, final String user, final String password,
+			final String key, final String lfile, final String rfile) {
+		return AsyncExecutor.supply(() -> {
+			receiveFile(ip, user, password, key, lfile, rfile);
+			return null;
+		});
+	}
+
+	public static CompletableFuture<Void> sendFileAsync(String ip, VirtualMachine vm, String lfile, String rfile) {
+		return sendFileAsync(ip, vm.getParameter("SSH_USER"), vm.getParameter("SSH_PASS"),
+				Configuration.getPathToFile(vm.getParameter("KEYPAIR_NAME").concat(".pem")).toString(), lfile, rfile);
+	}
+
+	public static CompletableFuture<Void> sendFileAsync(Instance inst, String lfile, String rfile) {
+		return sendFileAsync(inst.getIp(), inst.getSshUser(), inst.getSshPassword(), inst.getKey().toString(),
+				lfile, rfile);
+	}
+
+	public static CompletableFuture<Void> sendFileAsync(final String ip, final String user, final String password,
+			final String key, final String lfile, final String rfile) {
+		return AsyncExecutor.supply(() -> {
+			sendFile(ip, user, password, key, lfile, rfile);
+			return null;
+		});
+	}
+
 	public static void receiveFile(String ip, VirtualMachine vm, String lfile, String rfile) throws Exception {
 		receiveFile(ip, vm.getParameter("SSH_USER"), vm.getParameter("SSH_PASS"),
 				Configuration.getPathToFile(vm.getParameter("KEYPAIR_NAME").concat(".pem")).toString(), lfile, rfile);
@@ -136,40 +548,311 @@ public abstract class Ssh {
 			throws Exception {
 		long init = System.currentTimeMillis();
 		
-		Constructor<? extends Ssh> c = usedImplementation.getConstructor(String.class, String.class, String.class, String.class);
-		Ssh instance = c.newInstance(ip, user, password, key);
-		Method m = usedImplementation.getMethod("receiveFile", String.class, String.class);
-		m.invoke(instance, lfile, rfile);
+		Ssh instance = getProvider().newInstance(ip, user, password, key);
+		boolean done = false;
+		// one of the channels of the host is left for the checksum
+		int ranges = Math.min(parallelDownloadRanges, ConnectionPool.getMaxChannelsPerHost() - 1);
+		if (ranges > 1)
+			done = instance.receiveFileInRanges(lfile, rfile, ranges, parallelDownloadThreshold);
+		if (!done && (compression == Compression.GZIP || compression == Compression.AUTO)) {
+			instance.receiveCompressedFile(lfile, rfile, compression == Compression.GZIP ? -1 : compressionThreshold);
+			done = true;
+		}
+		if (!done)
+			instance.receiveFile(lfile, rfile);
 
 		long duration = System.currentTimeMillis() - init;
-		logger.debug("File `{}` received from {} in {}", rfile, ip, Utilities.durationToString(duration));
+		File f = new File(lfile);
+		if (f.isDirectory())
+			f = new File(f, new File(rfile).getName());
+		logger.debug("File `{}` received from {} in {} ({})", rfile, ip, Utilities.durationToString(duration),
+				Utilities.throughputToString(f.length(), duration));
 	}
 	
+	public static final long DEFAULT_PARALLEL_DOWNLOAD_THRESHOLD = 256 * 1024 * 1024;
+
+	private static int parallelDownloadRanges = 1;
+	private static long parallelDownloadThreshold = DEFAULT_PARALLEL_DOWNLOAD_THRESHOLD;
+
+	public static int getParallelDownloadRanges() {
+		return parallelDownloadRanges;
+	}
+
+	/**
+	 * Sets in how many ranges the big files are split when downloading them,
+	 * each range using its own channel. 1 (the default) disables the parallel
+	 * downloads. It's capped by the channels available on each host.
+	 */
+	public static void setParallelDownloadRanges(int parallelDownloadRanges) {
+		if (parallelDownloadRanges < 1)
+			throw new IllegalArgumentException("There should be at least one range.");
+		Ssh.parallelDownloadRanges = parallelDownloadRanges;
+		logger.debug("Downloading the big files in {} ranges now...", parallelDownloadRanges);
+	}
+
+	public static long getParallelDownloadThreshold() {
+		return parallelDownloadThreshold;
+	}
+
+	/**
+	 * Sets the size (in bytes) above which the files are downloaded in
+	 * parallel ranges.
+	 */
+	public static void setParallelDownloadThreshold(long parallelDownloadThreshold) {
+		Ssh.parallelDownloadThreshold = parallelDownloadThreshold;
+		logger.debug("Downloading in parallel the files bigger than {} now...",
+				Utilities.sizeToString(parallelDownloadThreshold));
+	}
+
+	private static final int RANGE_BLOCK_SIZE = 1024 * 1024;
+
+	/**
+	 * Downloads the file in byte ranges fetched with dd over parallel channels,
+	 * each one written in place in the local file (that is allocated upfront).
+	 * The SHA-256 of the remote file is taken while the ranges are downloaded
+	 * and then checked against the one of the local copy.
+	 * 
+	 * @return false if the file isn't bigger than the threshold or the
+	 *         implementation isn't a {@link StreamingSsh} (and so it wasn't
+	 *         downloaded).
+	 */
+	public boolean receiveFileInRanges(String lfile, final String rfile, int ranges, long threshold)
+			throws Exception {
+		if (!(this instanceof StreamingSsh streaming))
+			return false;
+
+		long init = System.currentTimeMillis();
+
+		final StringBuilder stat = new StringBuilder();
+		streaming.exec(String.format("stat -Lc %%s %s 2>/dev/null", rfile), new StreamHandler() {
+			@Override
+			public void handle(OutputStream stdin, InputStream stdout) throws Exception {
+				stat.append(IOUtils.toString(stdout, "UTF-8"));
+			}
+		});
+		final long size;
+		try {
+			size = Long.parseLong(stat.toString().trim());
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		if (size <= threshold)
+			return false;
+
+		File f = new File(lfile);
+		if (f.isDirectory())
+			f = new File(f, new File(rfile).getName());
+		else if (f.getParentFile() != null)
+			f.getParentFile().mkdirs();
+
+		long blocks = (size + RANGE_BLOCK_SIZE - 1) / RANGE_BLOCK_SIZE;
+		long blocksPerRange = (blocks + ranges - 1) / ranges;
+
+		ExecutorService executor = AsyncExecutor.newExecutor(ranges + 1, "ranges");
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			raf.setLength(size);
+			final FileChannel channel = raf.getChannel();
+
+			Future<String> remoteHash = executor.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					final StringBuilder res = new StringBuilder();
+					streaming.exec(String.format("sha256sum %s", rfile), new StreamHandler() {
+						@Override
+						public void handle(OutputStream stdin, InputStream stdout) throws Exception {
+							res.append(IOUtils.toString(stdout, "UTF-8"));
+						}
+					});
+					return res.toString().split(" ")[0].trim();
+				}
+			});
+
+			List<Future<Long>> parts = new ArrayList<Future<Long>>();
+			for (long first = 0; first < blocks; first += blocksPerRange) {
+				final long skip = first;
+				final long count = Math.min(blocksPerRange, blocks - first);
+				parts.add(executor.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						final long start = skip * RANGE_BLOCK_SIZE;
+						final long[] position = { start };
+						String command = String.format("dd if=%s bs=%d skip=%d count=%d 2>/dev/null", rfile,
+								RANGE_BLOCK_SIZE, skip, count);
+						streaming.exec(command, new StreamHandler() {
+							@Override
+							public void handle(OutputStream stdin, InputStream stdout) throws Exception {
+								ReadableByteChannel in = Channels.newChannel(stdout);
+								ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+								while (in.read(buf) >= 0) {
+									buf.flip();
+									while (buf.hasRemaining())
+										position[0] += channel.write(buf, position[0]);
+									buf.clear();
+								}
+							}
+						});
+
+						long expected = Math.min(count * RANGE_BLOCK_SIZE, size - start);
+						if (position[0] - start != expected)
+							throw new IOException(String.format("Got %d bytes instead of %d for the range at %d of `%s`.",
+									position[0] - start, expected, start, rfile));
+						return expected;
+					}
+				}));
+			}
+
+			try {
+				for (Future<Long> part : parts)
+					part.get();
+
+				// the bytes on disk, not a hash cached for the same size and
+				// modification time
+				String localHash = FileHash.computeSha256(f);
+				if (!localHash.equals(remoteHash.get()))
+					throw new IOException(String.format("The checksum of `%s` received from %s doesn't match.", rfile,
+							ip));
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception)
+					throw (Exception) e.getCause();
+				throw e;
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		long duration = System.currentTimeMillis() - init;
+		logger.debug("File `{}` ({}) received from {} in {} parallel ranges in {}", rfile, Utilities.sizeToString(size),
+				ip, ranges, Utilities.durationToString(duration));
+		return true;
+	}
+
+	/**
+	 * How the files matching a pattern are downloaded: NONE gets them one by
+	 * one, TAR streams all of them in a single tar archive over one channel,
+	 * TAR_GZIP does the same compressing the archive.
+	 */
+	public static enum BulkDownload {
+		NONE, TAR, TAR_GZIP
+	}
+
+	private static BulkDownload bulkDownload = BulkDownload.TAR;
+
+	public static BulkDownload getBulkDownload() {
+		return bulkDownload;
+	}
+
+	public static void setBulkDownload(BulkDownload bulkDownload) {
+		Ssh.bulkDownload = bulkDownload;
+		logger.debug("Using the {} mode for the bulk downloads now...", bulkDownload);
+	}
+
 	public static void receiveFile(String ip, String user, String password, String key, String lfile, String rfile)
 			throws Exception {
 		if (rfile.contains("*")) {
+			Ssh instance = getProvider().newInstance(ip, user, password, key);
+			if (instance instanceof MatchingFilesSsh matching) {
+				matching.receiveMatchingFiles(lfile, rfile);
+				return;
+			}
+
+			if (bulkDownload != BulkDownload.NONE) {
+				if (instance instanceof StreamingSsh streaming) {
+					receiveFilesAsTar(streaming, ip, lfile, rfile);
+					return;
+				}
+				logger.debug("The SSH provider doesn't support bulk downloads, getting the files one by one...");
+			}
+
 			String lsFiles = String.format("ls -lLp %s | awk '{ out=$9; for(i=10;i<=NF;i++) {out=out\" \"$i}; print out }' | grep --color=no '^/'", rfile);
 			List<String> res = exec(ip, user, password, key, lsFiles);
 			for (String s : res) {
-				if (s.startsWith("/")) {
-					String[] partsRfile = rfile.split("[*]");
-					String[] partsLfile = lfile.split("[*]");
-					int j = 0, k = 0;
-					String actualLfile = partsLfile[0];
-					for (int i = 0; i+1 < partsRfile.length; ++i) {
-						j = s.indexOf(partsRfile[i], j) + partsRfile[i].length();
-						k = s.indexOf(partsRfile[i+1], j);
-						String subst = s.substring(j, k);
-						actualLfile += subst + partsLfile[i+1];
-					}
-					receiveSingleFile(ip, user, password, key, actualLfile, s);
-				}
+				if (s.startsWith("/"))
+					receiveSingleFile(ip, user, password, key, getLocalFile(lfile, rfile, s), s);
 			}
 		} else {
 			receiveSingleFile(ip, user, password, key, lfile, rfile);
 		}
 	}
 
+	/**
+	 * Maps a remote file matching the rfile pattern to the local file, putting
+	 * what matched each * in rfile in place of the corresponding * in lfile.
+	 */
+	private static String getLocalFile(String lfile, String rfile, String s) {
+		String[] partsRfile = rfile.split("[*]");
+		String[] partsLfile = lfile.split("[*]");
+		int j = 0, k = 0;
+		String actualLfile = partsLfile[0];
+		for (int i = 0; i+1 < partsRfile.length; ++i) {
+			j = s.indexOf(partsRfile[i], j) + partsRfile[i].length();
+			k = s.indexOf(partsRfile[i+1], j);
+			String subst = s.substring(j, k);
+			actualLfile += subst + partsLfile[i+1];
+		}
+		return actualLfile;
+	}
+
+	private static void receiveFilesAsTar(final StreamingSsh instance, String ip, final String lfile,
+			final String rfile) throws Exception {
+		long init = System.currentTimeMillis();
+
+		final boolean gzip = bulkDownload == BulkDownload.TAR_GZIP;
+		final AtomicInteger count = new AtomicInteger();
+
+		// -P keeps the absolute paths, so that they can be mapped like the ones
+		// listed by ls; -h archives the files the symlinks point to, as ls -L
+		// did, and --hard-dereference keeps them whole even when two matches
+		// are the same file (otherwise the second one would be a link entry);
+		// --no-recursion skips the content of the directories matching the
+		// pattern, as ls -p | grep '^/' did
+		final String command = String.format("tar -c%shPf - --hard-dereference --no-recursion %s", gzip ? "z" : "",
+				rfile);
+
+		final StreamHandler handler = new StreamHandler() {
+			@Override
+			public void handle(OutputStream stdin, InputStream stdout) throws Exception {
+				InputStream in = new BufferedInputStream(stdout);
+				if (gzip)
+					in = new GZIPInputStream(in);
+
+				// not closed, stdout still has to be drained by the provider
+				TarArchiveInputStream tar = new TarArchiveInputStream(in);
+				TarArchiveEntry entry;
+				while ((entry = tar.getNextTarEntry()) != null) {
+					if (!entry.isFile())
+						continue;
+
+					File f = new File(getLocalFile(lfile, rfile, entry.getName()));
+					if (f.isDirectory())
+						f = new File(f, new File(entry.getName()).getName());
+					else if (f.getParentFile() != null)
+						f.getParentFile().mkdirs();
+
+					Files.copy(tar, f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					count.incrementAndGet();
+				}
+			}
+		};
+		// the files already extracted are overwritten, so the whole archive
+		// can be asked for again
+		Integer exitStatus = retryPolicy.run(String.format("`%s` on %s", command, ip), new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				count.set(0);
+				return instance.exec(command, handler);
+			}
+		});
+
+		if (count.get() == 0)
+			logger.warn("No file matching `{}` found on {}.", rfile, ip);
+		else if (exitStatus != null && exitStatus != 0)
+			logger.warn("Some of the files matching `{}` couldn't be read on {}.", rfile, ip);
+
+		long duration = System.currentTimeMillis() - init;
+		logger.debug("{} file{} matching `{}` received from {} in {}", count.get(), count.get() == 1 ? "" : "s", rfile,
+				ip, Utilities.durationToString(duration));
+	}
+
 	public static void sendFile(String ip, VirtualMachine vm, String lfile, String rfile) throws Exception {
 		sendFile(ip, vm.getParameter("SSH_USER"), vm.getParameter("SSH_PASS"),
 				Configuration.getPathToFile(vm.getParameter("KEYPAIR_NAME").concat(".pem")).toString(), lfile, rfile);
@@ -183,52 +866,435 @@ public abstract class Ssh {
 			throws Exception {
 		long init = System.currentTimeMillis();
 
-		Constructor<? extends Ssh> c = usedImplementation.getConstructor(String.class, String.class, String.class, String.class);
-		Ssh instance = c.newInstance(ip, user, password, key);
-		Method m = usedImplementation.getMethod("sendFile", String.class, String.class);
-		m.invoke(instance, lfile, rfile);
+		Ssh instance = getProvider().newInstance(ip, user, password, key);
+		File f = new File(lfile);
+		boolean gzip = f.isFile() && (compression == Compression.GZIP
+				|| (compression == Compression.AUTO && f.length() > compressionThreshold));
+		if (gzip)
+			instance.sendCompressedFile(lfile, rfile);
+		else
+			instance.sendFile(lfile, rfile);
+
+		long duration = System.currentTimeMillis() - init;
+		logger.debug("File `{}` sent to {} in {} ({})", lfile, ip, Utilities.durationToString(duration),
+				Utilities.throughputToString(f.length(), duration));
+	}
+
+	public static List<String> syncFiles(String ip, VirtualMachine vm, Map<String, String> files) throws Exception {
+		return syncFiles(ip, vm.getParameter("SSH_USER"), vm.getParameter("SSH_PASS"),
+				Configuration.getPathToFile(vm.getParameter("KEYPAIR_NAME").concat(".pem")).toString(), files);
+	}
+
+	public static List<String> syncFiles(Instance inst, Map<String, String> files) throws Exception {
+		return syncFiles(inst.getIp(), inst.getSshUser(), inst.getSshPassword(), inst.getKey().toString(), files);
+	}
+
+	/**
+	 * Sends only the files (given as local path -> remote path) that aren't
+	 * already on the remote machine with the same content. The remote folders
+	 * are created if needed and the SHA-256 hashes of all the remote copies
+	 * are taken in a single batch, the local ones are cached until the files
+	 * change.
+	 * 
+	 * @return the local files that were actually sent.
+	 */
+	public static List<String> syncFiles(String ip, String user, String password, String key,
+			Map<String, String> files) throws Exception {
+		List<String> sent = new ArrayList<String>();
+		if (files.size() == 0)
+			return sent;
+
+		long init = System.currentTimeMillis();
+
+		// the remote folders are created in the same round trip
+		Set<String> folders = new LinkedHashSet<String>();
+		boolean home = false;
+		for (String rfile : files.values()) {
+			String parent = new File(rfile).getParent();
+			if (parent != null)
+				folders.add(parent);
+			home |= isInHome(rfile);
+		}
+		StringBuilder mkdir = new StringBuilder("mkdir -p --");
+		for (String folder : folders)
+			mkdir.append(" ").append(quoteRemotePath(folder));
+
+		StringBuilder command = new StringBuilder("sha256sum --");
+		for (String rfile : files.values())
+			command.append(" ").append(quoteRemotePath(rfile));
+		command.append(" 2>/dev/null");
+
+		List<String> commands = new ArrayList<String>();
+		// sha256sum prints the paths expanded, so the home folder is needed to
+		// find the ones starting with ~
+		if (home)
+			commands.add("echo \"$HOME\"");
+		if (folders.size() > 0)
+			commands.add(mkdir.toString());
+		commands.add(command.toString());
+		List<BatchResult> res = execBatch(ip, user, password, key, commands);
+
+		String homeFolder = null;
+		if (home && res.get(0).output.size() > 0)
+			homeFolder = res.get(0).output.get(0).replaceAll("/+$", "");
+
+		// each line is "<hash>  <file>", the missing files aren't listed at all
+		Map<String, String> remoteHashes = new HashMap<String, String>();
+		for (String line : res.get(res.size() - 1).output) {
+			if (line.length() > 66 && line.charAt(64) == ' ')
+				remoteHashes.put(line.substring(66), line.substring(0, 64));
+		}
+		if (homeFolder != null) {
+			for (String rfile : files.values()) {
+				if (!isInHome(rfile))
+					continue;
+				String hash = remoteHashes.get(homeFolder + rfile.substring(1));
+				if (hash != null)
+					remoteHashes.put(rfile, hash);
+			}
+		}
+
+		for (Map.Entry<String, String> file : files.entrySet()) {
+			String lfile = file.getKey();
+			String rfile = file.getValue();
+			if (FileHash.sha256(lfile).equals(remoteHashes.get(rfile))) {
+				logger.trace("File `{}` is already up to date on {}.", rfile, ip);
+				continue;
+			}
+			sendFile(ip, user, password, key, lfile, rfile);
+			sent.add(lfile);
+		}
 
 		long duration = System.currentTimeMillis() - init;
-		logger.debug("File `{}` sent to {} in {}", lfile, ip, Utilities.durationToString(duration));
+		logger.debug("{} of {} file{} sent to {} in {}, the others were up to date", sent.size(), files.size(),
+				files.size() == 1 ? "" : "s", ip, Utilities.durationToString(duration));
+		return sent;
 	}
 
-	protected static Class<? extends Ssh> usedImplementation = Sshj.class;
+	private static boolean isInHome(String path) {
+		return path.equals("~") || path.startsWith("~/");
+	}
+
+	/**
+	 * Like {@link #quote(String)}, leaving a leading ~ out of the quotes (as
+	 * $HOME) so that the remote shell still expands it to the home folder.
+	 */
+	public static String quoteRemotePath(String path) {
+		if (path.equals("~"))
+			return "\"$HOME\"";
+		if (path.startsWith("~/"))
+			return "\"$HOME\"/" + quote(path.substring(2));
+		return quote(path);
+	}
+
+	/**
+	 * How the files are compressed while being transferred: NONE doesn't
+	 * compress them, TRANSPORT uses the zlib compression of the SSH transport
+	 * (for everything going through the connection, commands included), GZIP
+	 * streams the files through gzip/gunzip on an exec channel, AUTO does the
+	 * same but only for the files bigger than the compression threshold.
+	 */
+	public static enum Compression {
+		NONE, TRANSPORT, GZIP, AUTO
+	}
+
+	public static final long DEFAULT_COMPRESSION_THRESHOLD = 1024 * 1024;
+
+	private static Compression compression = Compression.NONE;
+	private static long compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+	public static Compression getCompression() {
+		return compression;
+	}
 
+	public static void setCompression(Compression compression) {
+		Ssh.compression = compression;
+		logger.debug("Using the {} compression for the transfers now...", compression);
+	}
+
+	public static long getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * Sets the size (in bytes) above which the files are compressed in the AUTO
+	 * mode.
+	 */
+	public static void setCompressionThreshold(long compressionThreshold) {
+		Ssh.compressionThreshold = compressionThreshold;
+		logger.debug("Compressing the files bigger than {} now...", Utilities.sizeToString(compressionThreshold));
+	}
+
+	private static final byte GZIP_HEADER = 'z';
+	private static final byte PLAIN_HEADER = 'c';
+
+	/**
+	 * Sends the file compressing it with gzip on the fly, the remote side
+	 * decompresses it with gunzip and then gives it the mode and the
+	 * modification time of the local file, as scp does. The implementations
+	 * that aren't a {@link StreamingSsh} send it as it is.
+	 */
+	public void sendCompressedFile(String lfile, String rfile) throws Exception {
+		if (!(this instanceof StreamingSsh streaming)) {
+			sendFile(lfile, rfile);
+			return;
+		}
+
+		final File f = new File(lfile);
+		final long[] stats = new long[2];
+
+		String attributes = String.format(" && touch -d @%d \"$f\"", f.lastModified() / 1000);
+		PosixFileAttributeView view = Files.getFileAttributeView(f.toPath(), PosixFileAttributeView.class);
+		if (view != null)
+			attributes = String.format(" && chmod %o \"$f\"", toMode(view.readAttributes().permissions())) + attributes;
+
+		String command = String.format("f=%s; if [ -d \"$f\" ]; then f=\"$f\"/%s; fi; gunzip -c > \"$f\"%s", rfile,
+				quote(f.getName()), attributes);
+		Integer exitStatus = streaming.exec(command, new StreamHandler() {
+			@Override
+			public void handle(OutputStream stdin, InputStream stdout) throws Exception {
+				long cpu = getCpuTime();
+				CountingOutputStream wire = new CountingOutputStream(stdin);
+				GZIPOutputStream out = new GZIPOutputStream(wire, BUFFER_SIZE);
+				Files.copy(f.toPath(), out);
+				out.finish();
+				out.flush();
+				stats[0] = wire.getByteCount();
+				stats[1] = getCpuTime() - cpu;
+			}
+		});
+
+		if (exitStatus != null && exitStatus != 0)
+			throw new IOException(String.format("Error while sending `%s` to %s (exit status %d).", lfile, ip, exitStatus));
+
+		logCompressionStats(lfile, f.length(), stats[0], stats[1]);
+	}
+
+	/**
+	 * Receives the file, compressed with gzip on the fly by the remote side if
+	 * it's bigger than the threshold (a negative threshold means always). The
+	 * local copy gets the mode and the modification time of the remote file.
+	 * The implementations that aren't a {@link StreamingSsh} receive it as it
+	 * is.
+	 */
+	public void receiveCompressedFile(String lfile, final String rfile, long threshold) throws Exception {
+		if (!(this instanceof StreamingSsh streaming)) {
+			receiveFile(lfile, rfile);
+			return;
+		}
+
+		File f = new File(lfile);
+		if (f.isDirectory())
+			f = new File(f, new File(rfile).getName());
+		final File target = f;
+		final long[] stats = new long[3];
+		final String[] attributes = new String[2];
+
+		// the first byte tells if what follows is compressed or not, without
+		// guessing it from the content (that could be a gzip file already),
+		// then comes a line with the mode (in octal) and the modification time
+		String command = String.format(
+				"f=%s; [ -f \"$f\" ] || exit 1; set -- $(stat -Lc '%%a %%Y %%s' \"$f\"); if [ \"$3\" -gt %d ]; then printf '%c%%s %%s\\n' \"$1\" \"$2\" && gzip -c < \"$f\"; else printf '%c%%s %%s\\n' \"$1\" \"$2\" && cat < \"$f\"; fi",
+				rfile, threshold, (char) GZIP_HEADER, (char) PLAIN_HEADER);
+		Integer exitStatus = streaming.exec(command, new StreamHandler() {
+			@Override
+			public void handle(OutputStream stdin, InputStream stdout) throws Exception {
+				long cpu = getCpuTime();
+				CountingInputStream wire = new CountingInputStream(stdout);
+				int header = wire.read();
+				if (header < 0)
+					return;
+				StringBuilder line = new StringBuilder();
+				for (int c = wire.read(); c >= 0 && c != '\n'; c = wire.read())
+					line.append((char) c);
+				String[] parts = line.toString().split(" ");
+				if (parts.length == 2) {
+					attributes[0] = parts[0];
+					attributes[1] = parts[1];
+				}
+
+				InputStream in = header == GZIP_HEADER ? new GZIPInputStream(wire, BUFFER_SIZE) : wire;
+				stats[0] = Files.copy(in, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				stats[1] = wire.getByteCount();
+				stats[2] = getCpuTime() - cpu;
+			}
+		});
+
+		if (stats[1] == 0) {
+			logger.warn("No file `{}` found on {}.", rfile, ip);
+			return;
+		}
+		if (exitStatus != null && exitStatus != 0)
+			throw new IOException(String.format("Error while receiving `%s` from %s (exit status %d).", rfile, ip,
+					exitStatus));
+
+		if (attributes[0] != null) {
+			PosixFileAttributeView view = Files.getFileAttributeView(target.toPath(), PosixFileAttributeView.class);
+			if (view != null)
+				view.setPermissions(toPermissions(Integer.parseInt(attributes[0], 8)));
+			Files.setLastModifiedTime(target.toPath(),
+					FileTime.from(Long.parseLong(attributes[1]), TimeUnit.SECONDS));
+		}
+
+		logCompressionStats(rfile, stats[0], stats[1], stats[2]);
+	}
+
+	// the permissions are declared in the same order of the bits of the mode,
+	// from the read permission of the owner to the execute one of the others
+
+	private static int toMode(Set<PosixFilePermission> permissions) {
+		int res = 0;
+		for (PosixFilePermission p : permissions)
+			res |= 1 << (8 - p.ordinal());
+		return res;
+	}
+
+	private static Set<PosixFilePermission> toPermissions(int mode) {
+		Set<PosixFilePermission> res = EnumSet.noneOf(PosixFilePermission.class);
+		for (PosixFilePermission p : PosixFilePermission.values())
+			if ((mode & 1 << (8 - p.ordinal())) != 0)
+				res.add(p);
+		return res;
+	}
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static long getCpuTime() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		return bean.isCurrentThreadCpuTimeSupported() ? bean.getCurrentThreadCpuTime() : 0;
+	}
+
+	private void logCompressionStats(String file, long size, long wireSize, long cpuTime) {
+		logger.debug("File `{}` ({}) moved as {} on the wire ({}%), {} ms of local CPU spent on it.", file,
+				Utilities.sizeToString(size), Utilities.sizeToString(wireSize),
+				size == 0 ? 100 : wireSize * 100 / size, TimeUnit.NANOSECONDS.toMillis(cpuTime));
+	}
+
+	private static volatile SshProvider provider = null;
+
+	public static SshProvider getProvider() {
+		SshProvider res = provider;
+		// the default is resolved lazily, Sshj can't be used while Ssh itself
+		// is being initialized
+		if (res == null)
+			res = provider = Sshj.PROVIDER;
+		return res;
+	}
+
+	public static void setProvider(SshProvider provider) {
+		if (provider == null)
+			throw new IllegalArgumentException("The SSH provider cannot be null.");
+		Ssh.provider = provider;
+		logger.debug("Using {} as the SSH provider now...", provider);
+	}
+
+	/**
+	 * Kept for compatibility, use {@link #setProvider(SshProvider)} instead.
+	 * The implementations shipped with cloud-runner are mapped to their
+	 * providers, any other class is instantiated through its
+	 * (String, String, String, String) constructor, looked up only once here.
+	 */
+	@Deprecated
 	public static void setImplementation(Class<? extends Ssh> usedImplementation) {
-		Ssh.usedImplementation = usedImplementation;
-		logger.debug("Using {} as the SSH implementation now...", usedImplementation.getName());
+		if (usedImplementation == Sshj.class)
+			setProvider(Sshj.PROVIDER);
+		else if (usedImplementation == Jsch.class)
+			setProvider(Jsch.PROVIDER);
+		else if (usedImplementation == FakeSsh.class)
+			setProvider(FakeSsh.PROVIDER);
+		else if (usedImplementation == LocalSsh.class)
+			setProvider(LocalSsh.PROVIDER);
+		else {
+			final Constructor<? extends Ssh> c;
+			try {
+				c = usedImplementation.getConstructor(String.class, String.class, String.class, String.class);
+			} catch (NoSuchMethodException e) {
+				throw new IllegalArgumentException("The SSH implementation needs a (ip, user, password, key) constructor.", e);
+			}
+			setProvider(new SshProvider() {
+				@Override
+				public Ssh newInstance(String ip, String user, String password, String key) {
+					try {
+						return c.newInstance(ip, user, password, key);
+					} catch (InvocationTargetException e) {
+						throw new RuntimeException("Error while creating the SSH implementation.", e.getCause());
+					} catch (Exception e) {
+						throw new RuntimeException("Error while creating the SSH implementation.", e);
+					}
+				}
+
+				@Override
+				public String toString() {
+					return c.getDeclaringClass().getName();
+				}
+			});
+		}
 	}
 	
 	public static void main(String[] args) throws Exception {
-		setImplementation(FakeSsh.class);
+		setProvider(FakeSsh.PROVIDER);
 		
 		Ssh.execInBackground("ip", "user", "password", "key", "command");
 	}
 	
 	public void localSendFile(String lfile, String rfile) throws Exception {
-		if (!new File(lfile).exists())
-			throw new FileNotFoundException("File " + lfile + " not found!");
-		
-		if (new File(rfile).exists() && new File(rfile).isDirectory() && !rfile.endsWith(File.separator))
-			rfile = rfile + File.separator;
-		
-		String command = String.format("cp %s %s", lfile, rfile);
-		Local.exec(command);
+		localCopy(lfile, rfile);
 	}
 	
 	public void localReceiveFile(String lfile, String rfile) throws Exception {
-		if (!new File(rfile).exists())
-			throw new FileNotFoundException("File " + rfile + " not found!");
-		
-		if (new File(lfile).exists() && new File(lfile).isDirectory() && !lfile.endsWith(File.separator))
-			lfile = lfile + File.separator;
-		
-		String command = String.format("cp %s %s", rfile, lfile);
-		Local.exec(command);
+		localCopy(rfile, lfile);
+	}
+
+	/**
+	 * Copies the file(s) inside the JVM, without starting any process: the JDK
+	 * copies them in the kernel, cloning them on the filesystems that allow
+	 * it. A * in the source is expanded like the remote shell would do, and
+	 * mapped to the destination like when receiving the files matching a
+	 * pattern.
+	 */
+	private static void localCopy(String from, String to) throws Exception {
+		long init = System.currentTimeMillis();
+
+		List<String> files;
+		if (from.contains("*")) {
+			files = new ArrayList<String>();
+			for (String s : Local.glob(from))
+				if (new File(s).isFile())
+					files.add(s);
+			if (files.size() == 0) {
+				logger.warn("No file matching `{}` found on {}.", from, "localhost");
+				return;
+			}
+		} else {
+			if (!new File(from).exists())
+				throw new FileNotFoundException("File " + from + " not found!");
+			files = Collections.singletonList(from);
+		}
+
+		long size = 0;
+		for (String s : files) {
+			File source = new File(s);
+			File target = new File(from.contains("*") ? getLocalFile(to, from, s) : to);
+			if (target.isDirectory())
+				target = new File(target, source.getName());
+			else if (target.getParentFile() != null)
+				target.getParentFile().mkdirs();
+
+			Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			size += source.length();
+		}
+
+		long duration = System.currentTimeMillis() - init;
+		logger.trace("{} file{} copied from `{}` to `{}` in {} ({})", files.size(), files.size() == 1 ? "" : "s", from,
+				to, Utilities.durationToString(duration), Utilities.throughputToString(size, duration));
 	}
 	
 	public List<String> localExec(String command) throws Exception {
 		return Local.exec(command);
 	}
 
+	public int localExec(String command, LineConsumer stdout, LineConsumer stderr) throws Exception {
+		return Local.exec(command, stdout, stderr);
+	}
+
 }
@@ -25,4 +25,23 @@ public abstract class Utilities {
 		return sb.toString();
 	}
 
+	public static String sizeToString(long size) {
+		if (size < 1024)
+			return size + " B";
+		String[] units = { "KB", "MB", "GB", "TB" };
+		double res = size;
+		int i = -1;
+		while (res >= 1024 && i + 1 < units.length) {
+			res /= 1024;
+			i++;
+		}
+		return String.format("%.1f %s", res, units[i]);
+	}
+
+	public static String throughputToString(long size, long duration) {
+		if (duration <= 0)
+			duration = 1;
+		return sizeToString(size * 1000 / duration) + "/s";
+	}
+
 }
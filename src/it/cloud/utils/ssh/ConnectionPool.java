@@ -0,0 +1,403 @@
+package it.cloud.utils.ssh;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps authenticated SSH connections around so that consecutive operations on
+ * the same host (with the same credentials) don't pay a new TCP connection, key
+ * exchange and authentication each time.
+ *
+ * There is a single connection for each host, shared by everyone using it:
+ * concurrent operations open their own sessions/channels on it, up to
+ * {@link #getMaxChannelsPerHost()} at the same time (the others wait for a
+ * channel to be given back). Connections are handed out with
+ * {@link #borrow(Key)} and given back with {@link #release(Key, Object)}; they
+ * are checked before being reused and are closed when nobody used them for
+ * more than {@link #getIdleTimeout()} milliseconds.
+ */
+public abstract class ConnectionPool<T> {
+
+	protected static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+	public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+	public static final long EVICTION_PERIOD = 30 * 1000;
+	// the default value of MaxSessions in OpenSSH
+	public static final int DEFAULT_MAX_CHANNELS_PER_HOST = 10;
+
+	private static long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private static int maxChannelsPerHost = DEFAULT_MAX_CHANNELS_PER_HOST;
+
+	public static long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public static void setIdleTimeout(long idleTimeout) {
+		ConnectionPool.idleTimeout = idleTimeout;
+		logger.debug("Idle SSH connections will be closed after {} ms now...", idleTimeout);
+	}
+
+	public static int getMaxChannelsPerHost() {
+		return maxChannelsPerHost;
+	}
+
+	/**
+	 * Sets how many sessions/channels can be open at the same time on the
+	 * connection to a host. It must not be greater than the MaxSessions value
+	 * of the SSH servers. It only applies to the hosts not contacted yet.
+	 */
+	public static void setMaxChannelsPerHost(int maxChannelsPerHost) {
+		if (maxChannelsPerHost <= 0)
+			throw new IllegalArgumentException("There should be at least one channel per host.");
+		ConnectionPool.maxChannelsPerHost = maxChannelsPerHost;
+		logger.debug("Using up to {} channels per host now...", maxChannelsPerHost);
+	}
+
+	private static final List<ConnectionPool<?>> pools = new CopyOnWriteArrayList<ConnectionPool<?>>();
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				clearAll();
+			}
+		});
+	}
+
+	private final String name;
+	private final Map<Key, Host<T>> hosts = new HashMap<Key, Host<T>>();
+	private Thread evictor = null;
+
+	public ConnectionPool(String name) {
+		this.name = name;
+	}
+
+	protected abstract T connect(Key key) throws Exception;
+
+	protected abstract boolean isAlive(T connection);
+
+	protected abstract void disconnect(T connection) throws Exception;
+
+	public T borrow(Key key) throws Exception {
+		Host<T> host;
+		synchronized (this) {
+			host = hosts.get(key);
+			if (host == null) {
+				host = new Host<T>(maxChannelsPerHost);
+				hosts.put(key, host);
+			}
+			// counted from now on, so that the host isn't dropped while
+			// waiting for a channel
+			host.users++;
+		}
+
+		T connection;
+		try {
+			host.channels.acquire();
+		} catch (InterruptedException e) {
+			unused(key, host);
+			throw e;
+		}
+		try {
+			host.lock.lock();
+			try {
+				if (host.connection != null && !isAlive(host.connection)) {
+					logger.trace("The {} connection to {} is dead, reconnecting...", name, key.ip);
+					retire(host);
+				}
+				if (host.connection == null) {
+					long init = System.currentTimeMillis();
+					host.connection = connect(key);
+					logger.trace("New {} connection to {} opened in {} ms.", name, key.ip,
+							System.currentTimeMillis() - init);
+				}
+				host.lastUsed = System.currentTimeMillis();
+				connection = host.connection;
+				host.leases.merge(connection, 1, Integer::sum);
+			} finally {
+				host.lock.unlock();
+			}
+		} catch (Exception e) {
+			host.channels.release();
+			unused(key, host);
+			throw e;
+		}
+
+		startEvictor();
+		return connection;
+	}
+
+	public void release(Key key, T connection) {
+		if (connection == null)
+			return;
+		Host<T> host;
+		synchronized (this) {
+			host = hosts.get(key);
+		}
+		if (host == null) {
+			close(connection);
+			return;
+		}
+		host.lock.lock();
+		try {
+			host.lastUsed = System.currentTimeMillis();
+			if (connection == host.connection && !isAlive(connection))
+				retire(host);
+
+			// a connection out of service is closed by the last one using it
+			Integer leases = host.leases.get(connection);
+			if (leases != null && leases > 1) {
+				host.leases.put(connection, leases - 1);
+			} else if (leases != null) {
+				host.leases.remove(connection);
+				if (connection != host.connection)
+					close(connection);
+			}
+		} finally {
+			host.lock.unlock();
+		}
+		host.channels.release();
+		unused(key, host);
+	}
+
+	/**
+	 * Takes the connection of the host out of service (the next borrower opens
+	 * a new one), closing it only if nobody is using it: the others keep their
+	 * channels and finish (or fail) on their own. To be called holding the
+	 * lock of the host.
+	 */
+	private void retire(Host<T> host) {
+		T connection = host.connection;
+		host.connection = null;
+		if (connection != null && !host.leases.containsKey(connection))
+			close(connection);
+	}
+
+	/**
+	 * Gives back the reservation of a borrower, dropping the host once nobody
+	 * uses it and its connection is closed.
+	 */
+	private synchronized void unused(Key key, Host<T> host) {
+		host.users--;
+		// with no users nobody else can be touching the connection
+		if (host.users == 0 && host.connection == null && hosts.get(key) == host)
+			hosts.remove(key);
+	}
+
+	/**
+	 * Gives back a connection that shouldn't be used anymore, e.g. after an
+	 * error that left it in a bad state. It's shared with the other users of
+	 * the host, so it's only taken out of service (if it's still the current
+	 * one) and closed by the last of them.
+	 */
+	public void invalidate(Key key, T connection) {
+		if (connection == null)
+			return;
+		Host<T> host;
+		synchronized (this) {
+			host = hosts.get(key);
+		}
+		if (host != null) {
+			host.lock.lock();
+			try {
+				if (host.connection == connection)
+					host.connection = null;
+			} finally {
+				host.lock.unlock();
+			}
+		}
+		release(key, connection);
+	}
+
+	public void evictIdle() {
+		Map<Key, Host<T>> idle = new HashMap<Key, Host<T>>();
+		synchronized (this) {
+			for (Map.Entry<Key, Host<T>> e : hosts.entrySet())
+				if (e.getValue().users == 0)
+					idle.put(e.getKey(), e.getValue());
+		}
+
+		// the connections are checked outside of the monitor, as isAlive can
+		// go on the network and a slow host mustn't stall all the others
+		int closed = 0;
+		for (Map.Entry<Key, Host<T>> e : idle.entrySet()) {
+			Host<T> host = e.getValue();
+			// a host busy connecting is skipped, it's in use anyway
+			if (!host.lock.tryLock())
+				continue;
+			T connection = null;
+			try {
+				// idle connections are also checked, so that the dead ones are
+				// dropped before anyone tries to use them
+				if (host.connection != null && host.leases.isEmpty()
+						&& (host.isExpired() || !isAlive(host.connection))) {
+					connection = host.connection;
+					host.connection = null;
+				}
+			} finally {
+				host.lock.unlock();
+			}
+
+			if (connection != null) {
+				close(connection);
+				closed++;
+			}
+			synchronized (this) {
+				if (host.users == 0 && host.connection == null && hosts.get(e.getKey()) == host)
+					hosts.remove(e.getKey());
+			}
+		}
+		if (closed > 0)
+			logger.trace("Closed {} idle {} connection{}.", closed, name, closed == 1 ? "" : "s");
+	}
+
+	/**
+	 * Closes all the connections, even the ones in use. The hosts still in use
+	 * are kept (and will connect again if needed) until they're given back.
+	 */
+	public void clear() {
+		List<Host<T>> all;
+		synchronized (this) {
+			all = new ArrayList<Host<T>>(hosts.values());
+			hosts.values().removeIf(host -> host.users == 0);
+		}
+
+		// an operation connecting to a host mustn't block the whole pool
+		List<T> toBeClosed = new ArrayList<T>();
+		for (Host<T> host : all) {
+			host.lock.lock();
+			try {
+				if (host.connection != null)
+					toBeClosed.add(host.connection);
+				host.connection = null;
+				for (T connection : host.leases.keySet())
+					if (!toBeClosed.contains(connection))
+						toBeClosed.add(connection);
+				host.leases.clear();
+			} finally {
+				host.lock.unlock();
+			}
+		}
+		for (T connection : toBeClosed)
+			close(connection);
+	}
+
+	/**
+	 * Closes all the connections of all the pools, e.g. to measure how long
+	 * it takes to open them.
+	 */
+	public static void clearAll() {
+		for (ConnectionPool<?> pool : pools)
+			pool.clear();
+	}
+
+	private void close(T connection) {
+		try {
+			disconnect(connection);
+		} catch (Exception e) {
+			logger.trace("Error while closing a " + name + " connection.", e);
+		}
+	}
+
+	private synchronized void startEvictor() {
+		if (evictor != null)
+			return;
+		// the pools are known (to be cleared) only once they're used, the
+		// subclasses aren't fully built yet in the constructor
+		pools.add(this);
+
+		evictor = new Thread(name + "-evictor") {
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(EVICTION_PERIOD);
+					} catch (InterruptedException e) {
+						return;
+					}
+					try {
+						evictIdle();
+					} catch (Exception e) {
+						logger.error("Error while evicting the idle connections.", e);
+					}
+				}
+			}
+		};
+		evictor.setDaemon(true);
+		evictor.start();
+	}
+
+	private static class Host<T> {
+		// a lock instead of synchronized, as connecting can take a while and
+		// it mustn't pin the carrier thread when running on a virtual thread
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Semaphore channels;
+		// how many are using each connection, the current one or the ones
+		// out of service but still in use
+		private final Map<T, Integer> leases = new IdentityHashMap<T, Integer>();
+		// changed holding the lock, but also read by the pool to drop the host
+		private volatile T connection = null;
+		// how many are using (or waiting for) the host, guarded by the pool
+		private int users = 0;
+		private long lastUsed = System.currentTimeMillis();
+
+		private Host(int maxChannels) {
+			channels = new Semaphore(maxChannels, true);
+		}
+
+		private boolean isExpired() {
+			return System.currentTimeMillis() - lastUsed > idleTimeout;
+		}
+	}
+
+	public static class Key {
+		public final String ip;
+		public final String user;
+		public final String password;
+		public final String key;
+		public final boolean compressed;
+
+		public Key(String ip, String user, String password, String key) {
+			this(ip, user, password, key, false);
+		}
+
+		public Key(String ip, String user, String password, String key, boolean compressed) {
+			this.ip = ip;
+			this.user = user;
+			this.password = password;
+			this.key = key;
+			this.compressed = compressed;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return Objects.equals(ip, other.ip) && Objects.equals(user, other.user)
+					&& Objects.equals(password, other.password) && Objects.equals(key, other.key)
+					&& compressed == other.compressed;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(ip, user, password, key, compressed);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s@%s", user, ip);
+		}
+	}
+
+}
@@ -1,12 +1,23 @@
 package it.cloud.utils.ssh;
 
-import java.util.List;
-
 import it.cloud.Instance;
 import it.cloud.VirtualMachine;
+import it.cloud.utils.LineConsumer;
 import it.cloud.utils.Ssh;
 
-public class FakeSsh extends Ssh {
+public class FakeSsh extends Ssh implements StreamingSsh {
+
+	public static final SshProvider PROVIDER = new SshProvider() {
+		@Override
+		public Ssh newInstance(String ip, String user, String password, String key) {
+			return new FakeSsh(ip, user, password, key);
+		}
+
+		@Override
+		public String toString() {
+			return FakeSsh.class.getName();
+		}
+	};
 
 	public FakeSsh(String ip, String user, String password, String key) {
 		super(ip, user, password, key);
@@ -21,11 +32,17 @@ public class FakeSsh extends Ssh {
 	}
 
 	@Override
-	public List<String> exec(String command) throws Exception {
+	public Integer exec(String command, LineConsumer stdout, LineConsumer stderr) throws Exception {
 		logger.info("exec(`{}`)", command);
 		return null;
 	}
 
+	@Override
+	public Integer exec(String command, StreamHandler handler) throws Exception {
+		logger.info("exec(`{}`, handler)", command);
+		return null;
+	}
+
 	@Override
 	public void receiveFile(String lfile, String rfile) throws Exception {
 		logger.info("receiveFile(`{}`, `{}`)", lfile, rfile);
@@ -1,15 +1,23 @@
 package it.cloud.utils.ssh;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.util.ArrayList;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 
 import com.jcraft.jsch.Channel;
 import com.jcraft.jsch.ChannelExec;
@@ -19,12 +27,25 @@ import com.jcraft.jsch.Session;
 
 import it.cloud.Instance;
 import it.cloud.VirtualMachine;
+import it.cloud.utils.LineConsumer;
 import it.cloud.utils.Ssh;
 
-public class Jsch extends Ssh {
+public class Jsch extends Ssh implements StreamingSsh {
 
 	public static final String NAME = "it.cloud.utils.ssh.Jsch";
 
+	public static final SshProvider PROVIDER = new SshProvider() {
+		@Override
+		public Ssh newInstance(String ip, String user, String password, String key) {
+			return new Jsch(ip, user, password, key);
+		}
+
+		@Override
+		public String toString() {
+			return Jsch.class.getName();
+		}
+	};
+
 	public Jsch(String ip, String user, String password, String key) {
 		super(ip, user, password, key);
 	}
@@ -37,166 +58,274 @@ public class Jsch extends Ssh {
 		super(inst);
 	}
 
-	@Deprecated
-	public List<String> execWithoutEnvironment(String command) throws Exception {
-		final List<String> res = new ArrayList<String>();
+	private static final ConnectionPool<Session> pool = new ConnectionPool<Session>("jsch") {
+		@Override
+		protected Session connect(Key key) throws Exception {
+			return getConnectedSession(key);
+		}
+
+		@Override
+		protected boolean isAlive(Session session) {
+			if (!session.isConnected())
+				return false;
+			try {
+				session.sendKeepAliveMsg();
+				return true;
+			} catch (Exception e) {
+				return false;
+			}
+		}
+
+		@Override
+		protected void disconnect(Session session) {
+			session.disconnect();
+		}
+	};
+
+	private static final JSch NO_KEY = new JSch();
+
+	/**
+	 * A JSch for every key, so that the key is parsed only once and not every
+	 * time a session is opened.
+	 */
+	private static final KeyCache<JSch> keys = new KeyCache<JSch>("jsch") {
+		@Override
+		protected JSch load(Path key) throws Exception {
+			JSch res = new JSch();
+			res.addIdentity(key.toString());
+			return res;
+		}
+	};
 
+	private static Session getConnectedSession(ConnectionPool.Key k) throws Exception {
 		// creating session with username, server's address and port (22 by
 		// default)
-		JSch jsch = new JSch();
+		JSch jsch = k.key != null ? keys.get(Paths.get(k.key)) : NO_KEY;
 
-		jsch.addIdentity(key);
-
-		Session session = jsch.getSession(user, ip, 22);
-		session.setPassword(password);
+		Session session = jsch.getSession(k.user, getHost(k.ip), getPort(k.ip));
+		session.setPassword(k.password);
 
 		// disabling of certificate checks
 		session.setConfig("StrictHostKeyChecking", "no");
+		// zlib on the whole transport, if the server accepts it
+		if (k.compressed) {
+			session.setConfig("compression.s2c", "zlib@openssh.com,zlib,none");
+			session.setConfig("compression.c2s", "zlib@openssh.com,zlib,none");
+			session.setConfig("compression_level", "6");
+		}
+		// the session is going to be pooled, so it must not keep the JVM alive
+		// and it must notice when the server is gone
+		session.setDaemonThread(true);
+		session.setServerAliveInterval(5000);
 		// creating connection
 		session.connect();
 
+		return session;
+	}
+
+	private Session getSession() throws Exception {
+		return pool.borrow(getPoolKey());
+	}
+
+	private void release(Session session) {
+		pool.release(getPoolKey(), session);
+	}
+
+	@Deprecated
+	public List<String> execWithoutEnvironment(String command) throws Exception {
+		LineConsumer.Collector res = new LineConsumer.Collector();
+
+		Integer exitStatus = execWithoutEnvironment(command, res, res);
+		if (exitStatus != null)
+			res.consume("exit-status: " + exitStatus);
+
+		return res.getLines();
+	}
+
+	@Deprecated
+	public Integer execWithoutEnvironment(String command, LineConsumer stdout, LineConsumer stderr) throws Exception {
+		Session session = getSession();
+
+		try {
+			return exec(session, command, stdout, stderr);
+		} finally {
+			release(session);
+		}
+	}
+
+	private static Integer exec(Session session, String command, LineConsumer stdout, LineConsumer stderr)
+			throws Exception {
 		// creating channel in execution mod
 		final Channel channel = session.openChannel("exec");
 		// sending command which runs bash-script in UploadPath directory
 		((ChannelExec) channel).setCommand(command);
 		// taking input stream
 		channel.setInputStream(null);
-		// connecting channel
-		channel.connect();
-
-		Thread in = new Thread() {
-			public void run() {
-				try (Scanner sc = new Scanner(channel.getInputStream())) {
-					while (sc.hasNextLine()) {
-						String line = sc.nextLine();
-						logger.trace(line);
-						res.add(line);
-					}
-				} catch (Exception e) {
-					logger.error("Error while considering the input stream.", e);
-				}
-			}
-		};
-		in.start();
-
-		Thread err = new Thread() {
-			public void run() {
-				try (Scanner sc = new Scanner(((ChannelExec) channel).getErrStream())) {
-					while (sc.hasNextLine()) {
-						String line = sc.nextLine();
-						logger.trace(line);
-						res.add(line);
-					}
-				} catch (Exception e) {
-					logger.error("Error while considering the error stream.", e);
-				}
-			}
-		};
-		err.start();
 
-		in.join();
-		err.join();
-		if (channel.isClosed())
-			res.add("exit-status: " + channel.getExitStatus());
+		try {
+			LineConsumer.Pump in = new LineConsumer.Pump(channel.getInputStream(), stdout);
+			LineConsumer.Pump err = new LineConsumer.Pump(((ChannelExec) channel).getErrStream(), stderr);
 
-		// closing connection
-		channel.disconnect();
-		session.disconnect();
+			// connecting channel
+			channel.connect();
 
-		return res;
-	}
+			in.start();
+			err.start();
 
-	public static final String FINISHED_FLAG = "TERMINATO_TUTTO_TUTTO";
+			in.await();
+			err.await();
 
-	public List<String> exec(String command) throws Exception {
-		List<String> res = new ArrayList<String>();
+			// the exit status comes with the closing of the channel, that can
+			// follow the end of the streams by a bit
+			while (!channel.isClosed())
+				Thread.sleep(10);
 
-		// creating session with username, server's address and port (22 by
-		// default)
-		JSch jsch = new JSch();
+			return channel.getExitStatus();
+		} finally {
+			// closing the channel, the session goes back to the pool
+			channel.disconnect();
+		}
+	}
 
-		jsch.addIdentity(key);
+	@Override
+	public Integer exec(String command, StreamHandler handler) throws Exception {
+		Session session = getSession();
 
-		Session session = jsch.getSession(user, ip, 22);
-		session.setPassword(password);
+		try {
+			ChannelExec channel = (ChannelExec) session.openChannel("exec");
+			channel.setCommand(command);
 
-		// disabling of certificate checks
-		session.setConfig("StrictHostKeyChecking", "no");
-		// creating connection
-		session.connect();
+			try {
+				// the streams must be taken before connecting the channel, or
+				// the first bytes could get lost
+				OutputStream stdin = channel.getOutputStream();
+				InputStream stdout = channel.getInputStream();
+				LineConsumer.Pump err = new LineConsumer.Pump(channel.getErrStream(), LineConsumer.DISCARD);
+
+				channel.connect();
+				err.start();
+
+				try {
+					handler.handle(stdin, stdout);
+					stdin.close();
+					IOUtils.copy(stdout, NullOutputStream.NULL_OUTPUT_STREAM);
+				} finally {
+					stdout.close();
+				}
 
-		// creating channel in shell mode
-		ChannelShell channel = (ChannelShell) session.openChannel("shell");
-		// connecting channel
-		channel.connect();
+				err.await();
 
-		channel.setPtySize(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+				while (!channel.isClosed())
+					Thread.sleep(10);
 
-		try (PrintStream out = new PrintStream(channel.getOutputStream());
-				Scanner in = new Scanner(channel.getInputStream())) {
-			out.println("echo " + FINISHED_FLAG);
-			out.flush();
+				return channel.getExitStatus();
+			} finally {
+				channel.disconnect();
+			}
+		} finally {
+			release(session);
+		}
+	}
 
-			while (in.hasNextLine()) {
-				String line = in.nextLine();
-				if (line.equals(FINISHED_FLAG))
-					break;
+	private static final Map<Session, String> environments = Collections
+			.synchronizedMap(new WeakHashMap<Session, String>());
+
+	/**
+	 * Runs the command in an exec channel, after setting the login environment
+	 * that is captured the first time the pooled session is used.
+	 */
+	public Integer execChannel(String command, LineConsumer stdout, LineConsumer stderr) throws Exception {
+		Session session = getSession();
+
+		try {
+			String environment = environments.get(session);
+			if (environment == null) {
+				LineConsumer.Collector res = new LineConsumer.Collector();
+				exec(session, ENVIRONMENT_COMMAND, res, LineConsumer.DISCARD);
+				environment = parseEnvironment(res.getLines());
+				environments.put(session, environment);
 			}
 
-			out.println(command);
-			out.flush();
+			return exec(session, withEnvironment(environment, command), stdout, stderr);
+		} finally {
+			release(session);
+		}
+	}
+
+	public static final String FINISHED_FLAG = "TERMINATO_TUTTO_TUTTO";
+
+	public Integer exec(String command, LineConsumer stdout, LineConsumer stderr) throws Exception {
+		if (getExecMode() == ExecMode.EXEC)
+			return execChannel(command, stdout, stderr);
 
-			in.nextLine();
+		Session session = getSession();
+
+		try {
+			// creating channel in shell mode
+			ChannelShell channel = (ChannelShell) session.openChannel("shell");
 
 			try {
-				Thread.sleep(100);
-			} catch (Exception e) {
-			}
+				// connecting channel
+				channel.connect();
 
-			out.println("echo " + FINISHED_FLAG);
-			out.flush();
+				channel.setPtySize(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
 
-			while (in.hasNextLine()) {
-				String line = in.nextLine();
-				if (line.equals(FINISHED_FLAG))
-					break;
-				if (line.contains(FINISHED_FLAG))
-					continue;
-				logger.trace(line);
-				res.add(line);
+				try (PrintStream out = new PrintStream(channel.getOutputStream());
+						BufferedReader in = new BufferedReader(new InputStreamReader(channel.getInputStream()))) {
+					out.println("echo " + FINISHED_FLAG);
+					out.flush();
+
+					String line;
+					while ((line = in.readLine()) != null) {
+						if (line.equals(FINISHED_FLAG))
+							break;
+					}
+
+					// the command and the flag in a single write: the shell
+					// reads both while it's still waiting for input, so the
+					// flag isn't echoed by the terminal in the middle of the
+					// output and there's no need to wait before sending it
+					out.print(command + "\n" + "echo " + FINISHED_FLAG + "\n");
+					out.flush();
+
+					in.readLine();
+
+					while ((line = in.readLine()) != null) {
+						if (line.equals(FINISHED_FLAG))
+							break;
+						if (line.contains(FINISHED_FLAG))
+							continue;
+						logger.trace(line);
+						// the shell uses a terminal, so stderr is merged with
+						// stdout
+						stdout.consume(line);
+					}
+				}
+			} finally {
+				// closing the channel, the session goes back to the pool
+				channel.disconnect();
 			}
+		} finally {
+			release(session);
 		}
 
-		// closing connection
-		channel.disconnect();
-		session.disconnect();
-
-		return res;
+		// the exit status of a shell isn't available
+		return null;
 	}
 
 	public void receiveFile(String lfile, String rfile) throws Exception {
+		String prefix = null;
+		if (new File(lfile).isDirectory()) {
+			prefix = lfile + File.separator;
+		}
+
+		Session session = getSession();
+		Channel channel = null;
 		FileOutputStream fos = null;
 		try {
-			// creating session with username, server's address and port (22 by
-			// default)
-			JSch jsch = new JSch();
-
-			jsch.addIdentity(key);
-
-			Session session = jsch.getSession(user, ip, 22);
-			session.setPassword(password);
-
-			String prefix = null;
-			if (new File(lfile).isDirectory()) {
-				prefix = lfile + File.separator;
-			}
-			// session.setUserInfo(ui);
-			// disabling of certificate checks
-			session.setConfig("StrictHostKeyChecking", "no");
-			session.connect();
 			// exec 'scp -f rfile' remotely
 			String command = "scp -f " + rfile;
-			Channel channel = session.openChannel("exec");
+			channel = session.openChannel("exec");
 			((ChannelExec) channel).setCommand(command);
 			// get I/O streams for remote scp
 			OutputStream out = channel.getOutputStream();
@@ -259,47 +388,32 @@ public class Jsch extends Ssh {
 				fos.close();
 				fos = null;
 
-				if (checkAck(in) != 0) {
-					System.exit(0);
-				}
+				checkAck(in, rfile);
 
 				buf[0] = 0;
 				out.write(buf, 0, 1);
 				out.flush();
 			}
-
-			session.disconnect();
-		} catch (Exception e) {
-			logger.error("Error while receiving the file.", e);
-			try {
-				if (fos != null)
-					fos.close();
-			} catch (Exception ee) {
-			}
+		} finally {
+			if (fos != null)
+				IOUtils.closeQuietly(fos);
+			// closing the channel even if the transfer failed, or it would
+			// stay open on the pooled session
+			if (channel != null)
+				channel.disconnect();
+			release(session);
 		}
 	}
 
 	public void sendFile(String lfile, String rfile) throws Exception {
+		Session session = getSession();
+		Channel channel = null;
 		FileInputStream fis = null;
 		try {
-			// creating session with username, server's address and port (22 by
-			// default)
-			JSch jsch = new JSch();
-
-			jsch.addIdentity(key);
-
-			Session session = jsch.getSession(user, ip, 22);
-			session.setPassword(password);
-
-			// disabling of certificate checks
-			session.setConfig("StrictHostKeyChecking", "no");
-			// creating connection
-			session.connect();
-
 			boolean ptimestamp = true;
 			// exec 'scp -t rfile' remotely
 			String command = "scp " + (ptimestamp ? "-p" : "") + " -t " + rfile;
-			Channel channel = session.openChannel("exec");
+			channel = session.openChannel("exec");
 			((ChannelExec) channel).setCommand(command);
 			// get I/O streams for remote scp
 			OutputStream out = channel.getOutputStream();
@@ -307,9 +421,7 @@ public class Jsch extends Ssh {
 			// connecting channel
 			channel.connect();
 
-			if (checkAck(in) != 0) {
-				System.exit(0);
-			}
+			checkAck(in, rfile);
 
 			File _lfile = new File(lfile);
 
@@ -318,9 +430,7 @@ public class Jsch extends Ssh {
 				command += (" " + (_lfile.lastModified() / 1000) + " 0\n");
 				out.write(command.getBytes());
 				out.flush();
-				if (checkAck(in) != 0) {
-					System.exit(0);
-				}
+				checkAck(in, rfile);
 			}
 			// send "C0644 filesize filename", where filename should not include
 			// '/'
@@ -334,9 +444,7 @@ public class Jsch extends Ssh {
 			command += "\n";
 			out.write(command.getBytes());
 			out.flush();
-			if (checkAck(in) != 0) {
-				System.exit(0);
-			}
+			checkAck(in, rfile);
 			// send a content of lfile
 			fis = new FileInputStream(lfile);
 			byte[] buf = new byte[1024];
@@ -351,24 +459,28 @@ public class Jsch extends Ssh {
 			buf[0] = 0;
 			out.write(buf, 0, 1);
 			out.flush();
-			if (checkAck(in) != 0) {
-				System.exit(0);
-			}
+			checkAck(in, rfile);
 			out.close();
-
-			channel.disconnect();
-			session.disconnect();
-
-		} catch (Exception e) {
-			logger.error("Error while sending the file.", e);
-			try {
-				if (fis != null)
-					fis.close();
-			} catch (Exception ee) {
-			}
+		} finally {
+			if (fis != null)
+				IOUtils.closeQuietly(fis);
+			// closing the channel even if the transfer failed, or it would
+			// stay open on the pooled session
+			if (channel != null)
+				channel.disconnect();
+			release(session);
 		}
 	}
 
+	/**
+	 * Like {@link #checkAck(InputStream)}, failing if scp didn't acknowledge.
+	 */
+	private static void checkAck(InputStream in, String rfile) throws IOException {
+		int b = checkAck(in);
+		if (b != 0)
+			throw new IOException("The transfer of " + rfile + " failed (scp ack: " + b + ").");
+	}
+
 	private static int checkAck(InputStream in) throws IOException {
 		int b = in.read();
 		if (b == 0)
@@ -0,0 +1,69 @@
+package it.cloud.utils.ssh;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the keys already parsed by an SSH library, so that they aren't read
+ * and parsed again at every new connection. A key is loaded again only if its
+ * file was changed (i.e. its size or its modification time are different).
+ */
+public abstract class KeyCache<T> {
+
+	protected static final Logger logger = LoggerFactory.getLogger(KeyCache.class);
+
+	private final String name;
+	private final Map<Path, Entry<T>> cache = new ConcurrentHashMap<Path, Entry<T>>();
+
+	public KeyCache(String name) {
+		this.name = name;
+	}
+
+	private static class Entry<T> {
+		private final long lastModified;
+		private final long size;
+		private final T value;
+
+		private Entry(long lastModified, long size, T value) {
+			this.lastModified = lastModified;
+			this.size = size;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Parses the key in the given file.
+	 */
+	protected abstract T load(Path key) throws Exception;
+
+	public T get(Path key) throws Exception {
+		key = key.toAbsolutePath().normalize();
+		File f = key.toFile();
+		long lastModified = f.lastModified();
+		long size = f.length();
+
+		Entry<T> e = cache.get(key);
+		if (e != null && e.lastModified == lastModified && e.size == size)
+			return e.value;
+
+		// two threads may load the same key at the same time, it's harmless
+		T value = load(key);
+		cache.put(key, new Entry<T>(lastModified, size, value));
+		logger.debug("Key {} {} for {}.", key, e == null ? "loaded" : "changed, reloaded", name);
+		return value;
+	}
+
+	public void invalidate(Path key) {
+		cache.remove(key.toAbsolutePath().normalize());
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+
+}
@@ -0,0 +1,104 @@
+package it.cloud.utils.ssh;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import it.cloud.Instance;
+import it.cloud.VirtualMachine;
+import it.cloud.utils.LineConsumer;
+import it.cloud.utils.Ssh;
+
+public class LocalSsh extends Ssh implements StreamingSsh, MatchingFilesSsh {
+
+	public static final SshProvider PROVIDER = new SshProvider() {
+		@Override
+		public Ssh newInstance(String ip, String user, String password, String key) {
+			return new LocalSsh(ip, user, password, key);
+		}
+
+		@Override
+		public String toString() {
+			return LocalSsh.class.getName();
+		}
+	};
+
+	public LocalSsh(String ip, String user, String password, String key) {
+		super(ip, user, password, key);
+	}
+
+	public LocalSsh(String ip, VirtualMachine vm) {
+		super(ip, vm);
+	}
+
+	public LocalSsh(Instance inst) {
+		super(inst);
+	}
+
+	@Override
+	public Integer exec(String command, LineConsumer stdout, LineConsumer stderr) throws Exception {
+		return localExec(command, stdout, stderr);
+	}
+
+	@Override
+	public List<String> exec(String command) throws Exception {
+		return localExec(command);
+	}
+
+	@Override
+	public Integer exec(String command, StreamHandler handler) throws Exception {
+		ProcessBuilder pb = new ProcessBuilder(new String[] { "bash", "-c", command });
+		pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+
+		Process p = pb.start();
+
+		OutputStream stdin = p.getOutputStream();
+		try (InputStream stdout = p.getInputStream()) {
+			try {
+				handler.handle(stdin, stdout);
+			} finally {
+				stdin.close();
+			}
+			IOUtils.copy(stdout, NullOutputStream.NULL_OUTPUT_STREAM);
+		}
+
+		return p.waitFor();
+	}
+
+	@Override
+	public void receiveFile(String lfile, String rfile) throws Exception {
+		localReceiveFile(lfile, rfile);
+	}
+
+	@Override
+	public void sendFile(String lfile, String rfile) throws Exception {
+		localSendFile(lfile, rfile);
+	}
+
+	@Override
+	public void receiveMatchingFiles(String lfile, String rfile) throws Exception {
+		localReceiveFile(lfile, rfile);
+	}
+
+	// the plain copies are already done in the kernel, compressing or
+	// splitting them would only slow them down
+
+	@Override
+	public boolean receiveFileInRanges(String lfile, String rfile, int ranges, long threshold) throws Exception {
+		return false;
+	}
+
+	@Override
+	public void sendCompressedFile(String lfile, String rfile) throws Exception {
+		localSendFile(lfile, rfile);
+	}
+
+	@Override
+	public void receiveCompressedFile(String lfile, String rfile, long threshold) throws Exception {
+		localReceiveFile(lfile, rfile);
+	}
+
+}
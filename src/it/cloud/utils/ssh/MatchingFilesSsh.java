@@ -0,0 +1,12 @@
+package it.cloud.utils.ssh;
+
+/**
+ * Implemented by the {@link it.cloud.utils.Ssh} implementations with a
+ * specific way to get all the files matching a pattern, used instead of the
+ * generic ones (the tar archive or one file at a time).
+ */
+public interface MatchingFilesSsh {
+
+	public void receiveMatchingFiles(String lfile, String rfile) throws Exception;
+
+}
@@ -0,0 +1,14 @@
+package it.cloud.utils.ssh;
+
+import it.cloud.utils.Ssh;
+
+/**
+ * Creates the {@link Ssh} implementation used by the static helpers in
+ * {@link Ssh}. It is chosen once with {@link Ssh#setProvider(SshProvider)}, so
+ * that every call goes straight to the implementation without any reflection.
+ */
+public interface SshProvider {
+
+	public Ssh newInstance(String ip, String user, String password, String key);
+
+}
@@ -1,29 +1,56 @@
 package it.cloud.utils.ssh;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.file.Path;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 
 import it.cloud.Configuration;
 import it.cloud.Instance;
 import it.cloud.VirtualMachine;
+import it.cloud.utils.LineConsumer;
 import it.cloud.utils.Ssh;
 import net.schmizz.keepalive.KeepAliveProvider;
 import net.schmizz.sshj.DefaultConfig;
 import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.Message;
+import net.schmizz.sshj.common.SSHPacket;
 import net.schmizz.sshj.connection.channel.direct.Session;
 import net.schmizz.sshj.connection.channel.direct.Session.Command;
 import net.schmizz.sshj.connection.channel.direct.Session.Shell;
+import net.schmizz.sshj.transport.TransportException;
+import net.schmizz.sshj.transport.compression.DelayedZlibCompression;
+import net.schmizz.sshj.transport.compression.NoneCompression;
+import net.schmizz.sshj.transport.compression.ZlibCompression;
 import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
+import net.schmizz.sshj.userauth.keyprovider.KeyProvider;
 import net.schmizz.sshj.xfer.FileSystemFile;
 import net.schmizz.sshj.xfer.scp.SCPException;
 
-public class Sshj extends Ssh {
+public class Sshj extends Ssh implements StreamingSsh {
 
 	public static final String NAME = "it.cloud.utils.ssh.Sshj";
 
+	public static final SshProvider PROVIDER = new SshProvider() {
+		@Override
+		public Ssh newInstance(String ip, String user, String password, String key) {
+			return new Sshj(ip, user, password, key);
+		}
+
+		@Override
+		public String toString() {
+			return Sshj.class.getName();
+		}
+	};
+
 	public Sshj(String ip, String user, String password, String key) {
 		super(ip, user, password, key);
 	}
@@ -36,93 +63,232 @@ public class Sshj extends Ssh {
 		super(inst);
 	}
 
-	private SSHClient getConnectedClient() throws Exception {
-		if (password == null && key == null)
-			throw new Exception("You need to provide one among the key and the password to be used.");
+	private static final ConnectionPool<SSHClient> pool = new ConnectionPool<SSHClient>("sshj") {
+		@Override
+		protected SSHClient connect(Key key) throws Exception {
+			return getConnectedClient(key);
+		}
 
-		DefaultConfig defaultConfig = new DefaultConfig();
-		defaultConfig.setKeepAliveProvider(KeepAliveProvider.KEEP_ALIVE);
+		@Override
+		protected boolean isAlive(SSHClient ssh) {
+			return ssh.isConnected() && ssh.isAuthenticated();
+		}
 
-		final SSHClient ssh = new SSHClient(defaultConfig);
+		@Override
+		protected void disconnect(SSHClient ssh) throws Exception {
+			try {
+				ssh.disconnect();
+			} finally {
+				ssh.close();
+			}
+		}
+	};
+
+	/**
+	 * Building a config sets up all the factories of the ciphers, key
+	 * exchanges and so on, so only two of them are built (with and without
+	 * compression) and shared by all the clients. They must not be changed
+	 * afterwards: that's why the compression isn't chosen with
+	 * {@link SSHClient#useCompression()}, that changes the config of the
+	 * client.
+	 */
+	private static final DefaultConfig CONFIG = newConfig(false);
+	private static final DefaultConfig COMPRESSED_CONFIG = newConfig(true);
+
+	@SuppressWarnings("unchecked")
+	private static DefaultConfig newConfig(boolean compressed) {
+		DefaultConfig config = new DefaultConfig();
+		config.setKeepAliveProvider(KeepAliveProvider.KEEP_ALIVE);
+		// zlib on the whole transport, it must be chosen before the key exchange
+		if (compressed)
+			config.setCompressionFactories(new DelayedZlibCompression.Factory(), new ZlibCompression.Factory(),
+					new NoneCompression.Factory());
+		return config;
+	}
+
+	private static final Map<String, Path> keyPaths = new ConcurrentHashMap<String, Path>();
+
+	private static final KeyCache<KeyProvider> keys = new KeyCache<KeyProvider>("sshj") {
+		@Override
+		protected KeyProvider load(Path key) throws Exception {
+			KeyProvider res = new SSHClient(CONFIG).loadKeys(key.toString());
+			// the file is actually parsed (only once) the first time the key
+			// is asked for
+			res.getPrivate();
+			return res;
+		}
+	};
+
+	private static KeyProvider getKeyProvider(String key) throws Exception {
+		Path p = keyPaths.get(key);
+		if (p == null || !p.toFile().exists()) {
+			String file = key.endsWith(".pem") ? key : key.concat(".pem");
+			p = Configuration.getPathToFile(file);
+			if (p == null)
+				return null;
+			keyPaths.put(key, p);
+		}
+		return keys.get(p);
+	}
+
+	private static SSHClient getConnectedClient(ConnectionPool.Key k) throws Exception {
+		if (k.password == null && k.key == null)
+			throw new IllegalArgumentException("You need to provide one among the key and the password to be used.");
+
+		final SSHClient ssh = new SSHClient(k.compressed ? COMPRESSED_CONFIG : CONFIG);
 
 		ssh.addHostKeyVerifier(new PromiscuousVerifier());
 
-		ssh.connect(ip, SSH_PORT);
+		ssh.connect(getHost(k.ip), getPort(k.ip));
 
-		if (key != null) {
-			if (!key.endsWith(".pem"))
-				key = key.concat(".pem");
-			Path p = Configuration.getPathToFile(key);
-			if (p != null)
-				ssh.authPublickey(user, p.toString());
-		} else {
-			ssh.authPassword(user, password);
-		}
+		try {
+			if (k.key != null) {
+				KeyProvider kp = getKeyProvider(k.key);
+				if (kp != null)
+					ssh.authPublickey(k.user, kp);
+			} else {
+				ssh.authPassword(k.user, k.password);
+			}
 
-		ssh.getConnection().getKeepAlive().setKeepAliveInterval(5);
+			ssh.getConnection().getKeepAlive().setKeepAliveInterval(5);
+		} catch (Exception e) {
+			ssh.disconnect();
+			throw e;
+		}
 
 		return ssh;
 	}
 
+	private SSHClient getConnectedClient() throws Exception {
+		return pool.borrow(getPoolKey());
+	}
+
+	private void release(SSHClient ssh) {
+		pool.release(getPoolKey(), ssh);
+	}
+
 	@Deprecated
 	public List<String> execWithoutEnvironment(String command) throws Exception {
-		final List<String> res = new ArrayList<String>();
+		LineConsumer.Collector res = new LineConsumer.Collector();
+
+		Integer exitStatus = execWithoutEnvironment(command, res, res);
 
+		res.consume(String.format("exit-status: %d", exitStatus));
+		return res.getLines();
+	}
+
+	@Deprecated
+	public Integer execWithoutEnvironment(String command, LineConsumer stdout, LineConsumer stderr) throws Exception {
+		final SSHClient ssh = getConnectedClient();
+
+		try {
+			return exec(ssh, command, stdout, stderr);
+		} finally {
+			release(ssh);
+		}
+	}
+
+	private static Integer exec(SSHClient ssh, String command, LineConsumer stdout, LineConsumer stderr)
+			throws Exception {
+		final Session session = ssh.startSession();
+		// session.allocateDefaultPTY();
+
+		try {
+			final Command cmd = session.exec(command);
+
+			LineConsumer.Pump in = new LineConsumer.Pump(cmd.getInputStream(), stdout);
+			in.start();
+
+			LineConsumer.Pump err = new LineConsumer.Pump(cmd.getErrorStream(), stderr);
+			err.start();
+
+			cmd.join();
+			in.await();
+			err.await();
+
+			return cmd.getExitStatus();
+		} finally {
+			session.close();
+		}
+	}
+
+	@Override
+	public Integer exec(String command, StreamHandler handler) throws Exception {
 		final SSHClient ssh = getConnectedClient();
 
 		try {
 			final Session session = ssh.startSession();
-			// session.allocateDefaultPTY();
 
 			try {
 				final Command cmd = session.exec(command);
 
-				Thread in = new Thread() {
-					public void run() {
-						try (Scanner sc = new Scanner(cmd.getInputStream())) {
-							while (sc.hasNextLine()) {
-								String line = sc.nextLine();
-								logger.trace(line);
-								res.add(line);
-							}
-						}
-					}
-				};
-				in.start();
+				LineConsumer.Pump err = new LineConsumer.Pump(cmd.getErrorStream(), LineConsumer.DISCARD);
+				err.start();
 
-				Thread err = new Thread() {
-					public void run() {
-						try (Scanner sc = new Scanner(cmd.getErrorStream())) {
-							while (sc.hasNextLine()) {
-								String line = sc.nextLine();
-								logger.trace(line);
-								res.add(line);
-							}
-						}
+				// stdin has to be closed before sending the EOF, stdout is
+				// drained afterwards
+				OutputStream stdin = cmd.getOutputStream();
+				try (InputStream stdout = cmd.getInputStream()) {
+					try {
+						handler.handle(stdin, stdout);
+					} finally {
+						stdin.close();
 					}
-				};
-				err.start();
+					sendEof(ssh, cmd);
+					IOUtils.copy(stdout, NullOutputStream.NULL_OUTPUT_STREAM);
+				}
 
 				cmd.join();
-				in.join();
-				err.join();
+				err.await();
 
-				res.add(String.format("exit-status: %d", cmd.getExitStatus()));
+				return cmd.getExitStatus();
 			} finally {
 				session.close();
 			}
 		} finally {
-			ssh.disconnect();
-			ssh.close();
+			release(ssh);
 		}
+	}
+
+	/**
+	 * Closing the input of a command doesn't tell the other side that it's
+	 * over with this version of sshj, so the EOF is sent explicitly (the
+	 * commands reading the input, like gunzip, would wait for it forever).
+	 */
+	private static void sendEof(SSHClient ssh, Command cmd) throws TransportException {
+		ssh.getTransport().write(new SSHPacket(Message.CHANNEL_EOF).putUInt32(cmd.getRecipient()));
+	}
+
+	private static final Map<SSHClient, String> environments = Collections
+			.synchronizedMap(new WeakHashMap<SSHClient, String>());
+
+	/**
+	 * Runs the command in an exec channel, after setting the login environment
+	 * that is captured the first time the pooled connection is used.
+	 */
+	public Integer execChannel(String command, LineConsumer stdout, LineConsumer stderr) throws Exception {
+		final SSHClient ssh = getConnectedClient();
 
-		return res;
+		try {
+			String environment = environments.get(ssh);
+			if (environment == null) {
+				LineConsumer.Collector res = new LineConsumer.Collector();
+				exec(ssh, ENVIRONMENT_COMMAND, res, LineConsumer.DISCARD);
+				environment = parseEnvironment(res.getLines());
+				environments.put(ssh, environment);
+			}
+
+			return exec(ssh, withEnvironment(environment, command), stdout, stderr);
+		} finally {
+			release(ssh);
+		}
 	}
 
 	public static final String FINISHED_FLAG = "echo TERMINATO_TUTTO_TUTTO";
 
-	public List<String> exec(String command) throws Exception {
-		final List<String> res = new ArrayList<String>();
+	public Integer exec(String command, LineConsumer stdout, LineConsumer stderr) throws Exception {
+		if (getExecMode() == ExecMode.EXEC)
+			return execChannel(command, stdout, stderr);
 
 		final SSHClient ssh = getConnectedClient();
 
@@ -144,77 +310,71 @@ public class Sshj extends Ssh {
 				out.println("exit");
 				out.flush();
 
-				final String fcommand = command;
-
-				Thread in = new Thread() {
-					public void run() {
-						try (Scanner sc = new Scanner(shell.getInputStream())) {
-							boolean considerLine = false;
-							String shell = "";
-
-							while (sc.hasNextLine()) {
-								String line = sc.nextLine();
-								if (!considerLine && line.endsWith(FINISHED_FLAG)) {
-									shell = line.substring(0, line.indexOf(FINISHED_FLAG));
-								} else if (!considerLine && line.endsWith(fcommand)) {
-									considerLine = true;
-								} else if (considerLine && !line.contains(shell)) {
-									logger.trace(line);
-									res.add(line);
-								} else if (considerLine && line.contains(shell)) {
-									considerLine = false;
-								}
-							}
-						}
-					}
-				};
+				LineConsumer.Pump in = new LineConsumer.Pump(shell.getInputStream(), new ShellOutput(command, stdout));
 				in.start();
 
-				Thread err = new Thread() {
-					public void run() {
-						try (Scanner sc = new Scanner(shell.getErrorStream())) {
-							while (sc.hasNextLine()) {
-								String line = sc.nextLine();
-								logger.trace(line);
-								res.add(line);
-							}
-						}
-					}
-				};
+				LineConsumer.Pump err = new LineConsumer.Pump(shell.getErrorStream(), stderr);
 				err.start();
 
 				shell.join();
-				in.join();
-				err.join();
+				in.await();
+				err.await();
+
+				// the exit status of a shell isn't available
+				return null;
 			} finally {
 				session.close();
 			}
 		} finally {
-			ssh.disconnect();
-			ssh.close();
+			release(ssh);
 		}
+	}
 
-		return res;
+	/**
+	 * Filters the output of the shell, keeping only what was printed by the
+	 * command and not the prompts, the echo of the input and so on.
+	 */
+	private static class ShellOutput implements LineConsumer {
+		private final String command;
+		private final LineConsumer consumer;
+		private boolean considerLine = false;
+		private String shell = "";
+
+		private ShellOutput(String command, LineConsumer consumer) {
+			this.command = command;
+			this.consumer = consumer;
+		}
+
+		@Override
+		public void consume(String line) throws Exception {
+			if (!considerLine && line.endsWith(FINISHED_FLAG)) {
+				shell = line.substring(0, line.indexOf(FINISHED_FLAG));
+			} else if (!considerLine && line.endsWith(command)) {
+				considerLine = true;
+			} else if (considerLine && !line.contains(shell)) {
+				consumer.consume(line);
+			} else if (considerLine && line.contains(shell)) {
+				considerLine = false;
+			}
+		}
 	}
 
+	// The SCP transfers open their own session, so there's no need to start
+	// one here (it would just take one of the channels available on the host).
+
 	public void receiveFile(String lfile, String rfile) throws Exception {
 		final SSHClient ssh = getConnectedClient();
 
 		try {
-			final Session session = ssh.startSession();
-			try {
-				ssh.newSCPFileTransfer().download(rfile, new FileSystemFile(lfile));
-			} catch (SCPException e) {
-				if (e.getMessage().contains("No such file or directory"))
-					logger.warn("No file or directory `{}` found on {}.", rfile, ip);
-				else
-					throw e;
-			} finally {
-				session.close();
-			}
+			ssh.newSCPFileTransfer().download(rfile, new FileSystemFile(lfile));
+		} catch (SCPException e) {
+			// "No such file or directory" by openssh, all lowercase by others
+			if (e.getMessage().toLowerCase().contains("no such file or directory"))
+				logger.warn("No file or directory `{}` found on {}.", rfile, ip);
+			else
+				throw e;
 		} finally {
-			ssh.disconnect();
-			ssh.close();
+			release(ssh);
 		}
 	}
 
@@ -222,15 +382,9 @@ public class Sshj extends Ssh {
 		final SSHClient ssh = getConnectedClient();
 
 		try {
-			final Session session = ssh.startSession();
-			try {
-				ssh.newSCPFileTransfer().upload(new FileSystemFile(lfile), rfile);
-			} finally {
-				session.close();
-			}
+			ssh.newSCPFileTransfer().upload(new FileSystemFile(lfile), rfile);
 		} finally {
-			ssh.disconnect();
-			ssh.close();
+			release(ssh);
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,15 @@
+package it.cloud.utils.ssh;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Works directly on the streams of a command, for when its input or output
+ * aren't lines of text (e.g. archives or compressed files). The stdin stream is
+ * closed and what's left of stdout is drained after the handler returns.
+ */
+public interface StreamHandler {
+
+	public void handle(OutputStream stdin, InputStream stdout) throws Exception;
+
+}
@@ -0,0 +1,18 @@
+package it.cloud.utils.ssh;
+
+/**
+ * Implemented by the {@link it.cloud.utils.Ssh} implementations that can give
+ * the raw streams of a command, and so do the tar downloads, the downloads in
+ * ranges and the compressed transfers. The others get the files one at a time.
+ */
+public interface StreamingSsh {
+
+	/**
+	 * Runs the command in an exec channel (without the login environment),
+	 * giving its raw stdin and stdout to the handler.
+	 * 
+	 * @return the exit status of the command, or null if it isn't known.
+	 */
+	public Integer exec(String command, StreamHandler handler) throws Exception;
+
+}
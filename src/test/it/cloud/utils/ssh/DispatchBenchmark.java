@@ -0,0 +1,112 @@
+package it.cloud.utils.ssh;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import it.cloud.utils.LineConsumer;
+import it.cloud.utils.Ssh;
+
+/**
+ * Measures what the static helpers of {@link Ssh} pay to get to an
+ * implementation, with an implementation doing nothing so that only the
+ * dispatch is left:
+ * <ul>
+ * <li>looking up the constructor and the method and invoking them on every
+ * call, as it was done before the {@link SshProvider};</li>
+ * <li>the same with the constructor and the method looked up only once, as
+ * {@link Ssh#setImplementation(Class)} still does for custom classes;</li>
+ * <li>going through the {@link SshProvider} and calling the method
+ * directly.</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+	public static class NoopSsh extends Ssh {
+
+		public static final SshProvider PROVIDER = new SshProvider() {
+			@Override
+			public Ssh newInstance(String ip, String user, String password, String key) {
+				return new NoopSsh(ip, user, password, key);
+			}
+		};
+
+		public NoopSsh(String ip, String user, String password, String key) {
+			super(ip, user, password, key);
+		}
+
+		@Override
+		public Integer exec(String command, LineConsumer stdout, LineConsumer stderr) throws Exception {
+			return 0;
+		}
+
+		@Override
+		public void receiveFile(String lfile, String rfile) throws Exception { }
+
+		@Override
+		public void sendFile(String lfile, String rfile) throws Exception { }
+
+	}
+
+	private static final String IP = "127.0.0.1";
+	private static final String USER = "ubuntu";
+	private static final String COMMAND = "true";
+
+	private Class<? extends Ssh> usedImplementation;
+	private Constructor<? extends Ssh> constructor;
+	private Method method;
+	private SshProvider provider;
+
+	@Setup
+	public void setup() throws Exception {
+		usedImplementation = NoopSsh.class;
+		constructor = usedImplementation.getConstructor(String.class, String.class, String.class, String.class);
+		method = usedImplementation.getMethod("exec", String.class);
+		provider = NoopSsh.PROVIDER;
+	}
+
+	@Benchmark
+	public Object reflective() throws Exception {
+		Constructor<? extends Ssh> c = usedImplementation.getConstructor(String.class, String.class, String.class, String.class);
+		Ssh instance = c.newInstance(IP, USER, null, null);
+		Method m = usedImplementation.getMethod("exec", String.class);
+		return m.invoke(instance, COMMAND);
+	}
+
+	@Benchmark
+	public Object reflectiveCached() throws Exception {
+		Ssh instance = constructor.newInstance(IP, USER, null, null);
+		return method.invoke(instance, COMMAND);
+	}
+
+	@Benchmark
+	public List<String> provider() throws Exception {
+		Ssh instance = provider.newInstance(IP, USER, null, null);
+		return instance.exec(COMMAND);
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(DispatchBenchmark.class.getName()).build()).run();
+	}
+
+}
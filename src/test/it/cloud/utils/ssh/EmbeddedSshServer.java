@@ -0,0 +1,281 @@
+package it.cloud.utils.ssh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sshd.common.channel.Channel;
+import org.apache.sshd.common.channel.ChannelListener;
+import org.apache.sshd.common.kex.BuiltinDHFactories;
+import org.apache.sshd.common.kex.KeyExchangeFactory;
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.session.SessionListener;
+import org.apache.sshd.scp.server.ScpCommandFactory;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.ServerBuilder;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.server.command.Command;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An SSH server running inside the JVM (on localhost, on a free port), that
+ * runs the commands it gets as local processes and serves scp by itself. It
+ * counts the connections and the channels open on them, so that the pooling
+ * can be checked.
+ *
+ * It's started with {@link #start()}, the providers reach it through
+ * {@link #getAddress()}, as host:port. With {@link #start(int)} it listens on
+ * more loopback addresses (127.0.0.1, 127.0.0.2, ...), each one looking like
+ * a different host to the providers and to the pool.
+ */
+public class EmbeddedSshServer implements AutoCloseable {
+
+	protected static final Logger logger = LoggerFactory.getLogger(EmbeddedSshServer.class);
+
+	public static final String USER = "cloud-runner";
+	public static final String PASSWORD = "cloud-runner";
+
+	private static final String SHA1_KEX = "diffie-hellman-group14-sha1";
+
+	private final SshServer server;
+	private final Path hostKey;
+	private final AtomicInteger connections = new AtomicInteger();
+	private final AtomicInteger openChannels = new AtomicInteger();
+	private final List<String> hosts = new ArrayList<String>();
+
+	private EmbeddedSshServer(int addresses) throws IOException {
+		for (int i = 1; i <= addresses; ++i)
+			hosts.add(String.format("127.%d.%d.%d", (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff));
+
+		hostKey = Files.createTempFile("embedded-sshd", ".key");
+		Files.delete(hostKey);
+
+		server = SshServer.setUpDefaultServer();
+		// all the addresses get the same port, the one picked for the first
+		server.setHost(String.join(",", hosts));
+		server.setPort(0);
+
+		// the sshj in use knows only the Diffie-Hellman groups with SHA-1, that
+		// aren't enabled by default anymore: the stronger of the two is added
+		// last, so that it's picked only by the clients knowing nothing else
+		List<KeyExchangeFactory> kex = new ArrayList<KeyExchangeFactory>(server.getKeyExchangeFactories());
+		kex.add(ServerBuilder.DH2KEX.apply(BuiltinDHFactories.fromFactoryName(SHA1_KEX)));
+		server.setKeyExchangeFactories(kex);
+
+		// an RSA host key, the only kind known by the JSch in use
+		SimpleGeneratorHostKeyProvider keys = new SimpleGeneratorHostKeyProvider(hostKey);
+		keys.setAlgorithm("RSA");
+		server.setKeyPairProvider(keys);
+
+		server.setPasswordAuthenticator((user, password, session) -> USER.equals(user) && PASSWORD.equals(password));
+		// scp is served by the server itself, the other commands are run by bash
+		server.setCommandFactory(new ScpCommandFactory.Builder()
+				.withDelegate((channel, command) -> new BashCommand(command)).build());
+
+		server.addSessionListener(new SessionListener() {
+			@Override
+			public void sessionCreated(Session session) {
+				connections.incrementAndGet();
+			}
+		});
+		server.addChannelListener(new ChannelListener() {
+			@Override
+			public void channelOpenSuccess(Channel channel) {
+				openChannels.incrementAndGet();
+			}
+
+			@Override
+			public void channelClosed(Channel channel, Throwable reason) {
+				openChannels.decrementAndGet();
+			}
+		});
+	}
+
+	/**
+	 * Starts a new server, to be closed once done.
+	 */
+	public static EmbeddedSshServer start() throws IOException {
+		return start(1);
+	}
+
+	/**
+	 * Starts a new server listening on the given number of loopback
+	 * addresses, to be closed once done.
+	 */
+	public static EmbeddedSshServer start(int addresses) throws IOException {
+		if (addresses < 1 || addresses > 0xfffffe)
+			throw new IllegalArgumentException("The addresses should be between 1 and " + 0xfffffe + ".");
+
+		EmbeddedSshServer res = new EmbeddedSshServer(addresses);
+		try {
+			res.server.start();
+		} catch (IOException e) {
+			res.close();
+			throw e;
+		}
+		logger.debug("Embedded SSH server listening on {} ({} addresses).", res.getAddress(), addresses);
+		return res;
+	}
+
+	public String getAddress() {
+		return hosts.get(0) + ":" + server.getPort();
+	}
+
+	/**
+	 * @return all the addresses of the server, as host:port.
+	 */
+	public List<String> getAddresses() {
+		List<String> res = new ArrayList<String>();
+		for (String host : hosts)
+			res.add(host + ":" + server.getPort());
+		return res;
+	}
+
+	/**
+	 * @return how many connections were opened since the server started (or
+	 *         the last {@link #reset()}).
+	 */
+	public int getConnections() {
+		return connections.get();
+	}
+
+	/**
+	 * @return how many channels are open right now, on all the connections.
+	 */
+	public int getOpenChannels() {
+		return openChannels.get();
+	}
+
+	/**
+	 * Waits (up to the timeout, in ms) for all the channels to be closed, as
+	 * the close reaches the server a bit after the client is done.
+	 *
+	 * @return how many channels are still open.
+	 */
+	public int awaitChannelsClosed(long timeout) throws InterruptedException {
+		long init = System.currentTimeMillis();
+		while (openChannels.get() > 0 && System.currentTimeMillis() - init < timeout)
+			Thread.sleep(10);
+		return openChannels.get();
+	}
+
+	public void reset() {
+		connections.set(0);
+	}
+
+	@Override
+	public void close() throws IOException {
+		server.stop(true);
+		Files.deleteIfExists(hostKey);
+	}
+
+	/**
+	 * Runs the command with bash, as sshd would do. The process commands of
+	 * the embedded server aren't used as they split the command on the spaces
+	 * and never close the input of the process, while the transfers compressed
+	 * on the fly need the end of it.
+	 */
+	private static class BashCommand implements Command {
+		private final String command;
+		private InputStream in;
+		private OutputStream out;
+		private OutputStream err;
+		private ExitCallback callback;
+		private Process process;
+
+		private BashCommand(String command) {
+			this.command = command;
+		}
+
+		@Override
+		public void setInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public void setOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void setErrorStream(OutputStream err) {
+			this.err = err;
+		}
+
+		@Override
+		public void setExitCallback(ExitCallback callback) {
+			this.callback = callback;
+		}
+
+		@Override
+		public void start(ChannelSession channel, Environment env) throws IOException {
+			process = new ProcessBuilder("bash", "-c", command).start();
+
+			pump(in, process.getOutputStream(), true);
+			final Thread stdout = pump(process.getInputStream(), out, false);
+			final Thread stderr = pump(process.getErrorStream(), err, false);
+
+			Thread waiter = new Thread(() -> {
+				int exitStatus = -1;
+				try {
+					exitStatus = process.waitFor();
+					stdout.join();
+					stderr.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				callback.onExit(exitStatus);
+			}, "embedded-sshd-exit");
+			waiter.setDaemon(true);
+			waiter.start();
+		}
+
+		/**
+		 * Copies the stream on a new thread, closing the destination at the end
+		 * if asked (the input of the process) or just flushing it (the streams
+		 * of the channel, that are closed by the server).
+		 */
+		private static Thread pump(final InputStream from, final OutputStream to, final boolean close) {
+			Thread t = new Thread(() -> {
+				try {
+					byte[] buffer = new byte[8192];
+					int n;
+					while ((n = from.read(buffer)) >= 0) {
+						to.write(buffer, 0, n);
+						to.flush();
+					}
+				} catch (IOException e) {
+					logger.debug("Stopped copying a stream of a command: {}", e.getMessage());
+				} finally {
+					try {
+						if (close)
+							to.close();
+						else
+							to.flush();
+					} catch (IOException e) {
+						logger.debug("Error while closing a stream of a command: {}", e.getMessage());
+					}
+				}
+			}, "embedded-sshd-pump");
+			t.setDaemon(true);
+			t.start();
+			return t;
+		}
+
+		@Override
+		public void destroy(ChannelSession channel) {
+			if (process != null)
+				process.destroyForcibly();
+		}
+	}
+
+}
@@ -0,0 +1,410 @@
+package it.cloud.utils.ssh;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.cloud.utils.AsyncExecutor;
+import it.cloud.utils.LineConsumer;
+import it.cloud.utils.Ssh;
+import it.cloud.utils.Utilities;
+
+/**
+ * Measures the SSH implementations against a host (or an
+ * {@link EmbeddedSshServer}), going through the same static methods of {@link Ssh}
+ * used by the rest of the code, so that the pool, the compression and the
+ * bulk downloads are part of the numbers:
+ * <ul>
+ * <li>the cost of the handshake (a command on a new connection);</li>
+ * <li>the latency of a command on a pooled connection;</li>
+ * <li>sending many small files one by one;</li>
+ * <li>pulling them back with a pattern;</li>
+ * <li>sending and receiving a big file, with random data and with text, in
+ * each of the {@link Ssh.Compression} modes NONE, TRANSPORT and GZIP.</li>
+ * </ul>
+ *
+ * With "hosts", it runs commands on many hosts at the same time instead (see
+ * {@link #runConcurrentHosts(SshProvider, List, String, String, String, int, boolean)}),
+ * comparing the platform and the virtual threads of the {@link AsyncExecutor}.
+ */
+public class SshBenchmark {
+
+	protected static final Logger logger = LoggerFactory.getLogger(SshBenchmark.class);
+
+	public static final int DEFAULT_ITERATIONS = 20;
+	public static final int SMALL_FILES = 100;
+	public static final int SMALL_FILE_SIZE = 4 * 1024;
+	public static final long LARGE_FILE_SIZE = 64 * 1024 * 1024;
+
+	private final String ip;
+	private final String user;
+	private final String password;
+	private final String key;
+	private final int iterations;
+
+	public SshBenchmark(String ip, String user, String password, String key, int iterations) {
+		this.ip = ip;
+		this.user = user;
+		this.password = password;
+		this.key = key;
+		this.iterations = iterations;
+	}
+
+	public static class Measure {
+		public final String provider;
+		public final String operation;
+		public final int count;
+		public final long duration;
+		public final long bytes;
+
+		private Measure(String provider, String operation, int count, long duration, long bytes) {
+			this.provider = provider;
+			this.operation = operation;
+			this.count = count;
+			this.duration = duration;
+			this.bytes = bytes;
+		}
+
+		@Override
+		public String toString() {
+			String res = String.format("%s, %s: %d in %s, %.1f ms each", provider, operation, count,
+					Utilities.durationToString(duration), (double) duration / count);
+			if (bytes > 0)
+				res += String.format(" (%s)", Utilities.throughputToString(bytes, duration));
+			return res;
+		}
+	}
+
+	public List<Measure> run(SshProvider provider) throws Exception {
+		SshProvider previous = Ssh.getProvider();
+		Ssh.setProvider(provider);
+
+		String name = provider.toString().substring(provider.toString().lastIndexOf('.') + 1);
+		List<Measure> res = new ArrayList<Measure>();
+
+		Path local = Files.createTempDirectory("ssh-benchmark");
+		String remote = "/tmp/ssh-benchmark-" + System.currentTimeMillis();
+		Ssh.Compression compression = Ssh.getCompression();
+
+		try {
+			ConnectionPool.clearAll();
+			long init = System.currentTimeMillis();
+			for (int i = 0; i < iterations; ++i) {
+				ConnectionPool.clearAll();
+				exec("true");
+			}
+			res.add(new Measure(name, "handshake and command", iterations, System.currentTimeMillis() - init, 0));
+
+			init = System.currentTimeMillis();
+			for (int i = 0; i < iterations; ++i)
+				exec("true");
+			res.add(new Measure(name, "command", iterations, System.currentTimeMillis() - init, 0));
+
+			exec(String.format("mkdir -p %s/small %s/large", remote, remote));
+
+			File small = new File(local.toFile(), "small");
+			small.mkdirs();
+			for (int i = 0; i < SMALL_FILES; ++i)
+				createFile(new File(small, String.format("file-%03d.dat", i)), SMALL_FILE_SIZE);
+
+			init = System.currentTimeMillis();
+			for (File f : small.listFiles())
+				Ssh.sendFile(ip, user, password, key, f.getPath(), remote + "/small/");
+			res.add(new Measure(name, "small files sent", SMALL_FILES, System.currentTimeMillis() - init,
+					(long) SMALL_FILES * SMALL_FILE_SIZE));
+
+			File pulled = new File(local.toFile(), "pulled");
+			pulled.mkdirs();
+			init = System.currentTimeMillis();
+			Ssh.receiveFile(ip, user, password, key, pulled.getPath(), remote + "/small/*");
+			res.add(new Measure(name, "small files pulled with a pattern", SMALL_FILES,
+					System.currentTimeMillis() - init, FileUtils.sizeOfDirectory(pulled)));
+
+			File large = new File(local.toFile(), "large.dat");
+			createFile(large, LARGE_FILE_SIZE);
+			File text = new File(local.toFile(), "large.txt");
+			createTextFile(text, LARGE_FILE_SIZE);
+
+			for (Ssh.Compression c : new Ssh.Compression[] { Ssh.Compression.NONE, Ssh.Compression.TRANSPORT,
+					Ssh.Compression.GZIP }) {
+				Ssh.setCompression(c);
+				for (File f : new File[] { large, text }) {
+					String what = String.format("large %s file", f == large ? "random" : "text");
+
+					init = System.currentTimeMillis();
+					Ssh.sendFile(ip, user, password, key, f.getPath(), remote + "/large/" + f.getName());
+					res.add(new Measure(name, what + " sent, " + c, 1, System.currentTimeMillis() - init,
+							f.length()));
+
+					File received = new File(local.toFile(), "received-" + f.getName());
+					init = System.currentTimeMillis();
+					Ssh.receiveFile(ip, user, password, key, received.getPath(), remote + "/large/" + f.getName());
+					res.add(new Measure(name, what + " received, " + c, 1, System.currentTimeMillis() - init,
+							received.length()));
+					received.delete();
+				}
+			}
+		} finally {
+			Ssh.setCompression(compression);
+			try {
+				exec("rm -rf " + remote);
+			} catch (Exception e) {
+				logger.warn("Error while removing `{}` on {}.", remote, ip, e);
+			}
+			FileUtils.deleteQuietly(local.toFile());
+			Ssh.setProvider(previous);
+		}
+
+		for (Measure m : res)
+			logger.info("{}", m);
+		return res;
+	}
+
+	/**
+	 * Runs the commands (one after the other) on all the hosts at the same
+	 * time through the {@link AsyncExecutor}, allowed to use as many threads
+	 * as hosts, platform or virtual ones. Besides the time, it reports the
+	 * peak of live platform threads (the virtual ones aren't counted) and of
+	 * resident memory of the process (the heap if it can't be read). With an
+	 * {@link EmbeddedSshServer} the server is in the same process, so it's
+	 * part of the memory too. The hosts where the commands fail (e.g. because
+	 * the handshakes time out with too many of them at once) are counted, not
+	 * stopping the others.
+	 */
+	public static Measure runConcurrentHosts(SshProvider provider, List<String> hosts, final String user,
+			final String password, final String key, final int commands, boolean virtual) throws Exception {
+		SshProvider previous = Ssh.getProvider();
+		int maxThreads = AsyncExecutor.getMaxThreads();
+		boolean virtualThreads = AsyncExecutor.isVirtualThreads();
+		Ssh.setProvider(provider);
+		AsyncExecutor.setMaxThreads(hosts.size());
+		AsyncExecutor.setVirtualThreads(virtual);
+
+		String name = provider.toString().substring(provider.toString().lastIndexOf('.') + 1);
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		final long[] peaks = { 0, 0 };
+		final AtomicBoolean sampling = new AtomicBoolean(true);
+		final AtomicInteger failed = new AtomicInteger();
+		Thread sampler = new Thread(() -> {
+			while (sampling.get()) {
+				peaks[0] = Math.max(peaks[0], threads.getThreadCount());
+				peaks[1] = Math.max(peaks[1], getResidentMemory());
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}, "sampler");
+
+		ConnectionPool.clearAll();
+		System.gc();
+		long baseline = getResidentMemory();
+		long init = System.currentTimeMillis();
+		sampler.start();
+		try {
+			List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+			for (final String host : hosts) {
+				futures.add(AsyncExecutor.supply(() -> {
+					try {
+						for (int i = 0; i < commands; ++i) {
+							Integer exitStatus = Ssh.exec(host, user, password, key, "true", LineConsumer.DISCARD,
+									LineConsumer.DISCARD);
+							if (exitStatus != null && exitStatus != 0)
+								throw new IllegalStateException(String.format("`true` failed on %s (exit status %d).",
+										host, exitStatus));
+						}
+					} catch (Exception e) {
+						logger.warn("Error while running the commands on {}: {}", host, e.getMessage());
+						failed.incrementAndGet();
+					}
+					return null;
+				}));
+			}
+			AsyncExecutor.getAll(futures);
+		} finally {
+			sampling.set(false);
+			sampler.join();
+			ConnectionPool.clearAll();
+			AsyncExecutor.setVirtualThreads(virtualThreads);
+			AsyncExecutor.setMaxThreads(maxThreads);
+			Ssh.setProvider(previous);
+		}
+		long duration = System.currentTimeMillis() - init;
+
+		Measure res = new Measure(name,
+				String.format("commands on %d hosts at the same time (%d failed), %s threads (peak of %d live threads, %s of memory, %s more than before)",
+						hosts.size(), failed.get(), virtual ? "virtual" : "platform", peaks[0],
+						Utilities.sizeToString(peaks[1]), Utilities.sizeToString(peaks[1] - baseline)),
+				(hosts.size() - failed.get()) * commands, duration, 0);
+		logger.info("{}", res);
+		return res;
+	}
+
+	private static long getResidentMemory() {
+		try {
+			for (String line : Files.readAllLines(Paths.get("/proc/self/status")))
+				if (line.startsWith("VmRSS:"))
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+		} catch (Exception e) {
+			// not on Linux
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private void exec(String command) throws Exception {
+		Integer exitStatus = Ssh.exec(ip, user, password, key, command, LineConsumer.DISCARD, LineConsumer.DISCARD);
+		if (exitStatus != null && exitStatus != 0)
+			throw new IllegalStateException(String.format("`%s` failed on %s (exit status %d).", command, ip,
+					exitStatus));
+	}
+
+	private static void createFile(File f, long size) throws Exception {
+		// random data, so that the compression doesn't make it look faster
+		Random random = new Random(size);
+		byte[] buf = new byte[(int) Math.min(size, 1024 * 1024)];
+		try (OutputStream out = new FileOutputStream(f)) {
+			for (long written = 0; written < size; written += buf.length) {
+				random.nextBytes(buf);
+				out.write(buf, 0, (int) Math.min(buf.length, size - written));
+			}
+		}
+	}
+
+	private static void createTextFile(File f, long size) throws Exception {
+		// lines like the ones of a log, that compress well but not trivially
+		Random random = new Random(size);
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(f))) {
+			for (long written = 0; written < size;) {
+				byte[] line = String.format("%d INFO [worker-%d] request %d served in %d ms%n", written,
+						random.nextInt(16), random.nextInt(100000), random.nextInt(500)).getBytes("UTF-8");
+				int len = (int) Math.min(line.length, size - written);
+				out.write(line, 0, len);
+				written += len;
+			}
+		}
+	}
+
+	private static final Map<String, SshProvider> PROVIDERS = new LinkedHashMap<String, SshProvider>();
+
+	static {
+		PROVIDERS.put("sshj", Sshj.PROVIDER);
+		PROVIDERS.put("jsch", Jsch.PROVIDER);
+		PROVIDERS.put("local", LocalSsh.PROVIDER);
+	}
+
+	public static final int DEFAULT_HOSTS = 1000;
+	public static final int DEFAULT_COMMANDS = 5;
+
+	/**
+	 * Usage: [ip user password|- key|- [iterations [provider...]]], where the
+	 * providers are among sshj, jsch and local (by default sshj and jsch).
+	 * Without a host, the benchmark runs against an {@link EmbeddedSshServer}.
+	 *
+	 * With hosts [count [commands [provider...]]] it runs the commands on as
+	 * many hosts (1000 by default) at the same time instead, with the platform
+	 * and then the virtual threads, against an {@link EmbeddedSshServer}
+	 * listening on as many loopback addresses.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("hosts")) {
+			mainConcurrentHosts(args);
+			return;
+		}
+		if (args.length > 0 && args.length < 4)
+			throw new IllegalArgumentException(
+					"Usage: " + SshBenchmark.class.getName() + " [ip user password|- key|- [iterations [provider...]]]");
+
+		EmbeddedSshServer server = null;
+		SshBenchmark benchmark;
+		List<SshProvider> providers = new ArrayList<SshProvider>();
+		if (args.length == 0) {
+			server = EmbeddedSshServer.start();
+			// the embedded server doesn't give a terminal for the shell mode
+			Ssh.setExecMode(Ssh.ExecMode.EXEC);
+			benchmark = new SshBenchmark(server.getAddress(), EmbeddedSshServer.USER, EmbeddedSshServer.PASSWORD,
+					null, DEFAULT_ITERATIONS);
+		} else {
+			String password = args[2].equals("-") ? null : args[2];
+			String key = args[3].equals("-") ? null : args[3];
+			int iterations = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_ITERATIONS;
+			benchmark = new SshBenchmark(args[0], args[1], password, key, iterations);
+
+			for (int i = 5; i < args.length; ++i) {
+				SshProvider provider = PROVIDERS.get(args[i].toLowerCase());
+				if (provider == null)
+					throw new IllegalArgumentException("Unknown SSH provider: " + args[i]);
+				providers.add(provider);
+			}
+		}
+		if (providers.size() == 0) {
+			providers.add(Sshj.PROVIDER);
+			providers.add(Jsch.PROVIDER);
+		}
+
+		try {
+			List<Measure> res = new ArrayList<Measure>();
+			for (SshProvider provider : providers)
+				res.addAll(benchmark.run(provider));
+
+			logger.info("Summary:");
+			for (Measure m : res)
+				logger.info("{}", m);
+		} finally {
+			ConnectionPool.clearAll();
+			if (server != null)
+				server.close();
+		}
+	}
+
+	private static void mainConcurrentHosts(String[] args) throws Exception {
+		int hosts = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_HOSTS;
+		int commands = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_COMMANDS;
+		List<SshProvider> providers = new ArrayList<SshProvider>();
+		for (int i = 3; i < args.length; ++i) {
+			SshProvider provider = PROVIDERS.get(args[i].toLowerCase());
+			if (provider == null)
+				throw new IllegalArgumentException("Unknown SSH provider: " + args[i]);
+			providers.add(provider);
+		}
+		if (providers.size() == 0) {
+			providers.add(Sshj.PROVIDER);
+			providers.add(Jsch.PROVIDER);
+		}
+
+		Ssh.setExecMode(Ssh.ExecMode.EXEC);
+		try (EmbeddedSshServer server = EmbeddedSshServer.start(hosts)) {
+			List<Measure> res = new ArrayList<Measure>();
+			for (SshProvider provider : providers) {
+				res.add(runConcurrentHosts(provider, server.getAddresses(), EmbeddedSshServer.USER,
+						EmbeddedSshServer.PASSWORD, null, commands, false));
+				res.add(runConcurrentHosts(provider, server.getAddresses(), EmbeddedSshServer.USER,
+						EmbeddedSshServer.PASSWORD, null, commands, true));
+			}
+
+			logger.info("Summary:");
+			for (Measure m : res)
+				logger.info("{}", m);
+		}
+	}
+
+}
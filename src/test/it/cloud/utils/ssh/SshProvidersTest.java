@@ -0,0 +1,304 @@
+package it.cloud.utils.ssh;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import it.cloud.utils.AsyncExecutor;
+import it.cloud.utils.LineConsumer;
+import it.cloud.utils.Ssh;
+
+/**
+ * Runs the SSH providers against an {@link EmbeddedSshServer}: the commands,
+ * the pooling of the connections and the file transfers.
+ *
+ * The commands run in the {@link Ssh.ExecMode#EXEC} mode, the shell one needs
+ * a terminal that the embedded server doesn't give.
+ */
+@RunWith(Parameterized.class)
+public class SshProvidersTest {
+
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> getProviders() {
+		return Arrays.asList(new Object[][] { { Sshj.PROVIDER }, { Jsch.PROVIDER } });
+	}
+
+	private static EmbeddedSshServer server;
+	private static String address;
+
+	@BeforeClass
+	public static void startServer() throws Exception {
+		server = EmbeddedSshServer.start();
+		address = server.getAddress();
+		Ssh.setExecMode(Ssh.ExecMode.EXEC);
+	}
+
+	@AfterClass
+	public static void stopServer() throws Exception {
+		ConnectionPool.clearAll();
+		Ssh.setExecMode(Ssh.ExecMode.SHELL);
+		Ssh.setProvider(Sshj.PROVIDER);
+		server.close();
+	}
+
+	@Rule
+	public TemporaryFolder local = new TemporaryFolder();
+
+	@Rule
+	public TemporaryFolder remote = new TemporaryFolder();
+
+	private final SshProvider provider;
+
+	public SshProvidersTest(SshProvider provider) {
+		this.provider = provider;
+	}
+
+	@Before
+	public void setUp() {
+		Ssh.setProvider(provider);
+		ConnectionPool.clearAll();
+		server.reset();
+	}
+
+	@After
+	public void tearDown() {
+		Ssh.setCompression(Ssh.Compression.NONE);
+		Ssh.setBulkDownload(Ssh.BulkDownload.TAR);
+	}
+
+	private Integer exec(String command, LineConsumer stdout, LineConsumer stderr) throws Exception {
+		return Ssh.exec(address, EmbeddedSshServer.USER, EmbeddedSshServer.PASSWORD, null, command, stdout, stderr);
+	}
+
+	private void sendFile(File lfile, File rfile) throws Exception {
+		Ssh.sendFile(address, EmbeddedSshServer.USER, EmbeddedSshServer.PASSWORD, null, lfile.getPath(),
+				rfile.getPath());
+	}
+
+	private void receiveFile(File lfile, String rfile) throws Exception {
+		Ssh.receiveFile(address, EmbeddedSshServer.USER, EmbeddedSshServer.PASSWORD, null, lfile.getPath(), rfile);
+	}
+
+	private static File createFile(File f, int size) throws Exception {
+		byte[] content = new byte[size];
+		new Random(size).nextBytes(content);
+		try (OutputStream out = new FileOutputStream(f)) {
+			out.write(content);
+		}
+		return f;
+	}
+
+	private static void assertSameContent(File expected, File actual) throws Exception {
+		assertTrue(actual + " wasn't received", actual.isFile());
+		assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(actual.toPath()));
+	}
+
+	@Test
+	public void execKeepsTheStreamsApartAndReturnsTheExitStatus() throws Exception {
+		LineConsumer.Collector out = new LineConsumer.Collector();
+		LineConsumer.Collector err = new LineConsumer.Collector();
+
+		Integer exitStatus = exec("echo out; echo err >&2; exit 3", out, err);
+
+		assertEquals(Integer.valueOf(3), exitStatus);
+		assertEquals(Arrays.asList("out"), out.getLines());
+		assertEquals(Arrays.asList("err"), err.getLines());
+	}
+
+	@Test
+	public void execBatchRunsEveryCommand() throws Exception {
+		List<Ssh.BatchResult> res = Ssh.execBatch(address, EmbeddedSshServer.USER, EmbeddedSshServer.PASSWORD, null,
+				Arrays.asList("echo first", "false", "echo third"));
+
+		assertEquals(3, res.size());
+		assertEquals(Arrays.asList("first"), res.get(0).output);
+		assertEquals(Integer.valueOf(0), res.get(0).exitStatus);
+		assertEquals(Integer.valueOf(1), res.get(1).exitStatus);
+		assertEquals(Arrays.asList("third"), res.get(2).output);
+	}
+
+	@Test
+	public void consecutiveCommandsShareTheConnection() throws Exception {
+		for (int i = 0; i < 5; ++i)
+			assertEquals(Integer.valueOf(0), exec("true", LineConsumer.DISCARD, LineConsumer.DISCARD));
+		assertEquals(1, server.getConnections());
+
+		ConnectionPool.clearAll();
+		exec("true", LineConsumer.DISCARD, LineConsumer.DISCARD);
+		assertEquals(2, server.getConnections());
+	}
+
+	@Test
+	public void concurrentCommandsShareTheConnection() throws Exception {
+		int commands = ConnectionPool.getMaxChannelsPerHost() * 2;
+		List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+		for (int i = 0; i < commands; ++i)
+			futures.add(Ssh.execAsync(address, EmbeddedSshServer.USER, EmbeddedSshServer.PASSWORD, null,
+					"sleep 0.2", LineConsumer.DISCARD, LineConsumer.DISCARD));
+
+		AsyncExecutor.getAll(futures);
+		for (CompletableFuture<Integer> future : futures)
+			assertEquals(Integer.valueOf(0), future.get());
+		assertEquals(1, server.getConnections());
+		assertEquals(0, server.awaitChannelsClosed(5000));
+	}
+
+	@Test
+	public void filesAreSentAndReceived() throws Exception {
+		File lfile = createFile(local.newFile("sent.dat"), 100 * 1024);
+		File rfile = new File(remote.getRoot(), "sent.dat");
+		File received = new File(local.getRoot(), "received.dat");
+
+		sendFile(lfile, rfile);
+		assertSameContent(lfile, rfile);
+
+		receiveFile(received, rfile.getPath());
+		assertSameContent(lfile, received);
+	}
+
+	@Test
+	public void compressedFilesAreSentAndReceived() throws Exception {
+		Ssh.setCompression(Ssh.Compression.GZIP);
+
+		File lfile = createFile(local.newFile("sent.dat"), 100 * 1024);
+		File rfile = new File(remote.getRoot(), "sent.dat");
+		File received = new File(local.getRoot(), "received.dat");
+
+		sendFile(lfile, rfile);
+		assertSameContent(lfile, rfile);
+
+		receiveFile(received, rfile.getPath());
+		assertSameContent(lfile, received);
+	}
+
+	@Test
+	public void compressedFilesKeepTheModeAndTheModificationTime() throws Exception {
+		Ssh.setCompression(Ssh.Compression.GZIP);
+
+		File lfile = createFile(local.newFile("sent.sh"), 1024);
+		Files.setPosixFilePermissions(lfile.toPath(), PosixFilePermissions.fromString("rwxr-x---"));
+		Files.setLastModifiedTime(lfile.toPath(), FileTime.from(1000000000, TimeUnit.SECONDS));
+		File rfile = new File(remote.getRoot(), "sent.sh");
+		File received = new File(local.getRoot(), "received.sh");
+
+		sendFile(lfile, rfile);
+		assertEquals("rwxr-x---", PosixFilePermissions.toString(Files.getPosixFilePermissions(rfile.toPath())));
+		assertEquals(1000000000L, Files.getLastModifiedTime(rfile.toPath()).to(TimeUnit.SECONDS));
+
+		Files.setPosixFilePermissions(rfile.toPath(), PosixFilePermissions.fromString("rw----r--"));
+		Files.setLastModifiedTime(rfile.toPath(), FileTime.from(1200000000, TimeUnit.SECONDS));
+		receiveFile(received, rfile.getPath());
+		assertEquals("rw----r--", PosixFilePermissions.toString(Files.getPosixFilePermissions(received.toPath())));
+		assertEquals(1200000000L, Files.getLastModifiedTime(received.toPath()).to(TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void commandsWorkOnACompressedTransport() throws Exception {
+		Ssh.setCompression(Ssh.Compression.TRANSPORT);
+
+		LineConsumer.Collector out = new LineConsumer.Collector();
+		assertEquals(Integer.valueOf(0), exec("echo compressed", out, LineConsumer.DISCARD));
+		assertEquals(Arrays.asList("compressed"), out.getLines());
+	}
+
+	@Test
+	public void bigFilesAreReceivedInRanges() throws Exception {
+		long threshold = Ssh.getParallelDownloadThreshold();
+		Ssh.setParallelDownloadThreshold(1024 * 1024);
+		try {
+			File rfile = createFile(remote.newFile("big.dat"), 3 * 1024 * 1024 + 123);
+			File received = new File(local.getRoot(), "big.dat");
+
+			receiveFile(received, rfile.getPath());
+			assertSameContent(rfile, received);
+		} finally {
+			Ssh.setParallelDownloadThreshold(threshold);
+		}
+	}
+
+	@Test
+	public void matchingFilesAreReceivedWithTheSymlinks() throws Exception {
+		File a = createFile(remote.newFile("a.txt"), 10);
+		File b = createFile(remote.newFile("b.txt"), 20);
+		Files.createSymbolicLink(new File(remote.getRoot(), "link.txt").toPath(), a.toPath());
+		createFile(remote.newFile("other.dat"), 30);
+
+		for (Ssh.BulkDownload mode : Ssh.BulkDownload.values()) {
+			Ssh.setBulkDownload(mode);
+			File folder = local.newFolder(mode.toString());
+
+			receiveFile(new File(folder, "*.txt"), remote.getRoot() + "/*.txt");
+
+			assertEquals(mode.toString(), 3, folder.list().length);
+			assertSameContent(a, new File(folder, "a.txt"));
+			assertSameContent(b, new File(folder, "b.txt"));
+			assertSameContent(a, new File(folder, "link.txt"));
+		}
+	}
+
+	@Test
+	public void syncFilesSendsOnlyWhatChanged() throws Exception {
+		Map<String, String> files = new LinkedHashMap<String, String>();
+		File first = createFile(local.newFile("first.dat"), 1000);
+		File second = createFile(local.newFile("second.dat"), 2000);
+		files.put(first.getPath(), new File(remote.getRoot(), "sync/first.dat").getPath());
+		files.put(second.getPath(), new File(remote.getRoot(), "sync/second.dat").getPath());
+
+		List<String> sent = Ssh.syncFiles(address, EmbeddedSshServer.USER, EmbeddedSshServer.PASSWORD, null, files);
+		assertEquals(Arrays.asList(first.getPath(), second.getPath()), sent);
+
+		sent = Ssh.syncFiles(address, EmbeddedSshServer.USER, EmbeddedSshServer.PASSWORD, null, files);
+		assertEquals(0, sent.size());
+
+		createFile(second, 3000);
+		sent = Ssh.syncFiles(address, EmbeddedSshServer.USER, EmbeddedSshServer.PASSWORD, null, files);
+		assertEquals(Arrays.asList(second.getPath()), sent);
+		assertSameContent(second, new File(remote.getRoot(), "sync/second.dat"));
+	}
+
+	@Test
+	public void failedTransfersDontLeaveChannelsOpen() throws Exception {
+		File lfile = createFile(local.newFile("sent.dat"), 1000);
+		for (int i = 0; i < ConnectionPool.getMaxChannelsPerHost() + 1; ++i) {
+			try {
+				sendFile(lfile, new File(remote.getRoot(), "missing/folder/sent.dat"));
+				fail("The file was sent to a missing folder.");
+			} catch (Exception e) {
+				// expected
+			}
+			receiveFile(new File(local.getRoot(), "missing.dat"), remote.getRoot() + "/missing.dat");
+		}
+
+		assertEquals(0, server.awaitChannelsClosed(5000));
+		assertEquals(Integer.valueOf(0), exec("true", LineConsumer.DISCARD, LineConsumer.DISCARD));
+	}
+
+}